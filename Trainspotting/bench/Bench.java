@@ -0,0 +1,160 @@
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small benchmark harness in the spirit of JMH, which the build has no
+ * way of fetching: every benchmark is run for a number of warmup
+ * iterations, then for a number of measured iterations of fixed length,
+ * and the score is the mean time per operation over the measured ones.
+ *
+ * Results are written as JSON in the same shape as JMH's -rf json output,
+ * so the same tools can compare runs.
+ */
+final class Bench {
+
+    /**
+     * One benchmark operation, the i:th call should use the i:th input
+     */
+    interface Op {
+
+        /**
+         * @return anything computed, it is consumed so that the work
+         *         can't be optimised away
+         */
+        long run(int i);
+    }
+
+    static volatile long sink; // like JMH's Blackhole
+    private final int warmupIterations;
+    private final int iterations;
+    private final long iterationNanos;
+    private final List<Result> results = new ArrayList<Result>();
+
+    Bench(int warmupIterations, int iterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationNanos = iterationMillis * 1000000L;
+    }
+
+    /**
+     * Measure op and print the result, in ns/op
+     */
+    Result run(String name, Map<String, String> params, Op op) {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(op);
+        }
+        double[] scores = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            scores[i] = iteration(op);
+        }
+        Result r = new Result(name, params, scores);
+        results.add(r);
+        System.out.println(String.format("%-40s %-24s %12.1f +- %8.1f ns/op",
+                name, params.values(), r.mean(), r.error()));
+        return r;
+    }
+
+    private double iteration(Op op) {
+        long ops = 0;
+        long acc = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        int batch = 1;
+        do {
+            for (int i = 0; i < batch; i++) {
+                acc += op.run((int) ops++);
+            }
+            batch = Math.min(batch * 2, 1 << 16);
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        sink += acc;
+        return (double) elapsed / ops;
+    }
+
+    /**
+     * Write all results so far in the format of JMH's json result file
+     */
+    void writeJson(String fileName) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(fileName));
+        out.println("[");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            out.println("    {");
+            out.println("        \"benchmark\" : \"" + r.name + "\",");
+            out.println("        \"mode\" : \"avgt\",");
+            out.println("        \"warmupIterations\" : " + warmupIterations + ",");
+            out.println("        \"measurementIterations\" : " + iterations + ",");
+            out.println("        \"params\" : {");
+            int n = 0;
+            for (Map.Entry<String, String> e : r.params.entrySet()) {
+                out.println("            \"" + e.getKey() + "\" : \"" + e.getValue() + "\""
+                        + (++n < r.params.size() ? "," : ""));
+            }
+            out.println("        },");
+            out.println("        \"primaryMetric\" : {");
+            out.println("            \"score\" : " + r.mean() + ",");
+            out.println("            \"scoreError\" : " + r.error() + ",");
+            out.println("            \"scoreUnit\" : \"ns/op\",");
+            StringBuilder raw = new StringBuilder();
+            for (int k = 0; k < r.scores.length; k++) {
+                raw.append(k == 0 ? "" : ", ").append(r.scores[k]);
+            }
+            out.println("            \"rawData\" : [ [ " + raw + " ] ]");
+            out.println("        }");
+            out.println("    }" + (i + 1 < results.size() ? "," : ""));
+        }
+        out.println("]");
+        out.close();
+    }
+
+    static Map<String, String> params(String... keyValues) {
+        Map<String, String> m = new LinkedHashMap<String, String>();
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            m.put(keyValues[i], keyValues[i + 1]);
+        }
+        return m;
+    }
+
+    static final class Result {
+
+        final String name;
+        final Map<String, String> params;
+        final double[] scores;
+
+        Result(String name, Map<String, String> params, double[] scores) {
+            this.name = name;
+            this.params = params;
+            this.scores = scores;
+        }
+
+        double mean() {
+            double sum = 0;
+            for (double s : scores) {
+                sum += s;
+            }
+            return sum / scores.length;
+        }
+
+        /**
+         * Half width of the 99.9% confidence interval, as JMH reports it
+         * (using the normal distribution rather than Student's t)
+         */
+        double error() {
+            if (scores.length < 2) {
+                return Double.NaN;
+            }
+            double mean = mean();
+            double sq = 0;
+            for (double s : scores) {
+                sq += (s - mean) * (s - mean);
+            }
+            return 3.29 * Math.sqrt(sq / (scores.length - 1)) / Math.sqrt(scores.length);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * Makes bigger maps out of a small one by laying out copies of it in a
+ * grid, and sparser ones by turning some of the sensors off. The copies
+ * aren't connected to each other, which doesn't matter to the searches
+ * since they never leave the rails.
+ */
+final class MapTiler {
+
+    private final int width, height;
+    private final List<String[]> rails = new ArrayList<String[]>();
+    private final List<String[]> trains = new ArrayList<String[]>();
+    private final List<String[]> stations = new ArrayList<String[]>();
+
+    MapTiler(File file) throws FileNotFoundException {
+        Scanner sc = new Scanner(file);
+        sc.nextLine();
+        width = sc.nextInt();
+        height = sc.nextInt();
+        sc.nextLine();
+        while (sc.hasNextLine()) {
+            String line = sc.nextLine().trim();
+            if (line.equals(".")) {
+                break;
+            }
+            String[] sline = line.split(" ");
+            if (sline[sline.length - 1].equals("station")) {
+                stations.add(sline);
+                continue;
+            }
+            (sline[0].equals("R") ? rails : trains).add(sline);
+        }
+        sc.close();
+    }
+
+    /**
+     * @param tiles   the copies in each direction
+     * @param density the fraction of the sensors to keep, they are
+     *                dropped evenly over the map
+     * @return the map in the TrainLineFile format
+     */
+    String tile(int tiles, double density) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("TrainLineFile 2\n");
+        sb.append(width * tiles).append(' ').append(height * tiles).append('\n');
+        int sensors = 0;
+        for (int tx = 0; tx < tiles; tx++) {
+            for (int ty = 0; ty < tiles; ty++) {
+                for (String[] r : rails) {
+                    sb.append("R ").append(Integer.parseInt(r[1]) + tx * width);
+                    sb.append(' ').append(Integer.parseInt(r[2]) + ty * height);
+                    for (int i = 3; i < r.length - 1; i++) {
+                        sb.append(' ').append(r[i]);
+                    }
+                    boolean sensor = r[r.length - 1].equals("Sensor");
+                    if (sensor) {
+                        // keep the sensor if it takes the kept count past
+                        // the next multiple of the density
+                        sensor = (int) ((sensors + 1) * density) > (int) (sensors * density);
+                        sensors++;
+                    }
+                    sb.append(sensor ? " Sensor\n" : " NoSensor\n");
+                }
+                for (String[] s : stations) {
+                    sb.append("R ").append(Integer.parseInt(s[1]) + tx * width);
+                    sb.append(' ').append(Integer.parseInt(s[2]) + ty * height);
+                    sb.append(" Custom station\n");
+                }
+            }
+        }
+        for (String[] t : trains) {
+            for (int i = 0; i < t.length; i++) {
+                sb.append(i == 0 ? "" : " ").append(t[i]);
+            }
+            sb.append('\n');
+        }
+        sb.append(".\n");
+        return sb.toString();
+    }
+}
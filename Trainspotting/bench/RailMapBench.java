@@ -0,0 +1,280 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+/**
+ * Benchmarks of the RailMap questions the trains ask at every sensor, on
+ * the given maps and on bigger and sparser copies of the first one.
+ *
+ * Usage: java RailMapBench [options] [map ...]     (default map: bana)
+ *
+ * Options:
+ *   --json=file        write the results there, in JMH's json format
+ *   --tiles=1,2,4,8    the sizes of the tiled maps, copies per side
+ *   --density=1,0.5    the fractions of sensors kept in the tiled maps
+ *   --warmup=3 --iterations=5 --time=200   iterations and their length in ms
+ *   --filter=text      only run the benchmarks whose name contains text
+ *
+ * The "search" benchmarks walk the map, the others are the calls the
+ * trains make, which are mostly answered from the table built at load.
+ * The "RoutingTable" ones build the station table of StationRouter and
+ * the all-pairs table and look up ways in them, the size of the all-pairs
+ * table is printed with them.
+ */
+public class RailMapBench {
+
+    private final Bench bench;
+    private final String filter;
+    private final List<Point[]> moves = new ArrayList<Point[]>();
+
+    RailMapBench(Bench bench, String filter) {
+        this.bench = bench;
+        this.filter = filter;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String json = null;
+        String filter = "";
+        String[] tiles = {"1", "2", "4", "8"};
+        String[] densities = {"1", "0.5"};
+        int warmup = 3, iterations = 5, time = 200;
+        List<String> maps = new ArrayList<String>();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--json=")) {
+                json = value;
+            } else if (arg.startsWith("--tiles=")) {
+                tiles = value.split(",");
+            } else if (arg.startsWith("--density=")) {
+                densities = value.split(",");
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(value);
+            } else if (arg.startsWith("--iterations=")) {
+                iterations = Integer.parseInt(value);
+            } else if (arg.startsWith("--time=")) {
+                time = Integer.parseInt(value);
+            } else if (arg.startsWith("--filter=")) {
+                filter = value;
+            } else {
+                maps.add(arg);
+            }
+        }
+        if (maps.isEmpty()) {
+            maps.add("bana");
+        }
+
+        RailMapBench b = new RailMapBench(new Bench(warmup, iterations, time), filter);
+        for (String name : maps) {
+            b.runAll(new RailMap(new File(name)), name, "1", "1");
+        }
+        MapTiler tiler = new MapTiler(new File(maps.get(0)));
+        for (String t : tiles) {
+            for (String d : densities) {
+                if (Integer.parseInt(t) == 1 && Double.parseDouble(d) == 1) {
+                    continue; // the map itself, already done
+                }
+                String text = tiler.tile(Integer.parseInt(t), Double.parseDouble(d));
+                RailMap map = new RailMap(new Scanner(text));
+                b.runAll(map, maps.get(0), t, d);
+            }
+        }
+        if (json != null) {
+            b.bench.writeJson(json);
+        }
+    }
+
+    /**
+     * Every sensor and direction a train can leave it in, with where the
+     * train ends up: {sensor, {dir, 0}, next sensor}
+     */
+    private void collectMoves(RailMap map) {
+        moves.clear();
+        for (Point p : map.getSensors()) {
+            for (int dir = 0; dir < 4; dir++) {
+                if (!map.canMoveInDirection(p, dir)) {
+                    continue;
+                }
+                SearchResult next = map.findNextSensor(p, dir);
+                moves.add(new Point[]{p, new Point(dir, 0), next == null ? null : next.pos});
+            }
+        }
+    }
+
+    void runAll(final RailMap map, String mapName, String tiles, String density) {
+        collectMoves(map);
+        final int n = moves.size();
+        if (n == 0) {
+            System.err.println("no sensors in " + mapName);
+            return;
+        }
+        final Point[] from = new Point[n];
+        final int[] dirs = new int[n];
+        for (int i = 0; i < n; i++) {
+            from[i] = moves.get(i)[0];
+            dirs[i] = moves.get(i)[1].x;
+        }
+        Map<String, String> params = Bench.params("map", mapName, "tiles", tiles,
+                "density", density, "sensors", String.valueOf(map.getSensors().size()));
+
+        run("getNextSensor", params, new Bench.Op() {
+
+            public long run(int i) {
+                return hash(map.getNextSensor(from[i % n], dirs[i % n]));
+            }
+        });
+        run("getNextSensor.search", params, new Bench.Op() {
+
+            public long run(int i) {
+                return hash(map.findNextSensor(from[i % n], dirs[i % n]));
+            }
+        });
+        run("getNextSwitch", params, new Bench.Op() {
+
+            public long run(int i) {
+                return hash(map.getNextSwitch(from[i % n], dirs[i % n]));
+            }
+        });
+        run("getNextSwitch.search", params, new Bench.Op() {
+
+            public long run(int i) {
+                return hash(map.findNextSwitch(from[i % n], dirs[i % n]));
+            }
+        });
+        run("getNextCrossing", params, new Bench.Op() {
+
+            public long run(int i) {
+                return hash(map.getNextCrossing(from[i % n], dirs[i % n]));
+            }
+        });
+        run("getNextCrossing.search", params, new Bench.Op() {
+
+            public long run(int i) {
+                return hash(map.findNextCrossing(from[i % n], dirs[i % n]));
+            }
+        });
+        run("canMoveInDirection", params, new Bench.Op() {
+
+            public long run(int i) {
+                return map.canMoveInDirection(from[i % n], i & 3) ? 1 : 0;
+            }
+        });
+
+        // a train that left from[i] in dirs[i] and now hits the next sensor
+        final List<Point[]> hits = new ArrayList<Point[]>();
+        for (Point[] m : moves) {
+            if (m[2] != null) {
+                hits.add(new Point[]{Point.createNewAndMove(m[0], m[1].x), m[2], m[1]});
+            }
+        }
+        if (!hits.isEmpty()) {
+            run("getDirectionTrainCameWith", params, new Bench.Op() {
+
+                public long run(int i) {
+                    Point[] h = hits.get(i % hits.size());
+                    return map.getDirectionTrainCameWith(h[0], h[1], h[2].x);
+                }
+            });
+        }
+
+        final List<Point> onSegment = new ArrayList<Point>();
+        for (Point p : map.getSensors()) {
+            if (map.getSegmentKey(p) != null) {
+                onSegment.add(p);
+            }
+        }
+        if (!onSegment.isEmpty()) {
+            run("getSegmentSemaphor", params, new Bench.Op() {
+
+                public long run(int i) {
+                    return map.getSegmentSemaphor(onSegment.get(i % onSegment.size())).hashCode();
+                }
+            });
+            run("getSegmentSemaphor.search", params, new Bench.Op() {
+
+                public long run(int i) {
+                    Point[] ends = map.findSegment(onSegment.get(i % onSegment.size()));
+                    return ends == null ? 0 : ends[0].x + ends[1].y;
+                }
+            });
+        }
+        runRouting(map, params);
+    }
+
+    private void runRouting(final RailMap map, Map<String, String> params) {
+        boolean wanted = false;
+        for (String name : new String[]{"RoutingTable.build", "RoutingTable.buildStations",
+                    "RoutingTable.distanceToStation",
+                    "RoutingTable.alternatives", "RoutingTable.route"}) {
+            wanted |= name.contains(filter);
+        }
+        if (!wanted) {
+            return; // the table is too big to build for nothing
+        }
+        final TrackGraph graph = new TrackGraph(map);
+        final RoutingTable table = new RoutingTable(map, graph, StationRouter.TURN_AROUND_COST, true);
+        params = new LinkedHashMap<String, String>(params);
+        params.put("nodes", String.valueOf(table.size()));
+        params.put("tableBytes", String.valueOf(table.tableBytes()));
+        System.out.println(String.format("%-40s %-24s %12d nodes %12d bytes",
+                "RoutingTable.size", params.values(), table.size(), table.tableBytes()));
+        run("RoutingTable.build", params, new Bench.Op() {
+
+            public long run(int i) {
+                return new RoutingTable(map, graph, StationRouter.TURN_AROUND_COST, true).size();
+            }
+        });
+        run("RoutingTable.buildStations", params, new Bench.Op() {
+
+            public long run(int i) {
+                return new RoutingTable(map, graph, StationRouter.TURN_AROUND_COST, false).size();
+            }
+        });
+        final List<TrackGraph.Node> nodes = new ArrayList<TrackGraph.Node>();
+        for (TrackGraph.Node[] byDir : graph.getNodes()) {
+            for (TrackGraph.Node node : byDir) {
+                if (node != null) {
+                    nodes.add(node);
+                }
+            }
+        }
+        final List<Point> stations = map.getStations();
+        if (nodes.isEmpty() || stations.isEmpty()) {
+            return;
+        }
+        final int n = nodes.size();
+        run("RoutingTable.distanceToStation", params, new Bench.Op() {
+
+            public long run(int i) {
+                return table.distanceToStation(nodes.get(i % n), stations.get(i % stations.size()));
+            }
+        });
+        run("RoutingTable.alternatives", params, new Bench.Op() {
+
+            public long run(int i) {
+                return table.alternatives(nodes.get(i % n), stations.get(i % stations.size()), 2).size();
+            }
+        });
+        run("RoutingTable.route", params, new Bench.Op() {
+
+            public long run(int i) {
+                List<TrackGraph.Edge> way = table.route(nodes.get(i % n), nodes.get((i * 7) % n));
+                return way == null ? 0 : way.size();
+            }
+        });
+    }
+
+    private void run(String name, Map<String, String> params, Bench.Op op) {
+        if (name.contains(filter)) {
+            bench.run("RailMapBench." + name, params, op);
+        }
+    }
+
+    private static long hash(SearchResult r) {
+        return r == null ? 0 : r.pos.x * 31 + r.pos.y + r.distance;
+    }
+}
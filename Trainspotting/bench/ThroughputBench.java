@@ -0,0 +1,315 @@
+
+import TSim.TSimInterface;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+
+/**
+ * Runs Lab1 against HeadlessTSim for a fixed virtual time on every
+ * combination of the given maps, train counts and speeds, and prints a
+ * table to compare them by.
+ *
+ * Usage: java ThroughputBench [options]
+ *
+ * Options:
+ *   --maps=bana,origfast     the maps, gen:n is a MapGenerator map of n
+ *                            times the size of bana
+ *   --trains=2,4             how many of the trains of each map to run
+ *   --speeds=10,14,18        the speed of every train
+ *   --duration=600           virtual seconds per run
+ *   --scale=10               virtual seconds per wall clock second, 0 to
+ *                            run as fast as the controller keeps up
+ *   --locks=fifo             the lock policy, as for Lab1
+ *   --csv=file               also write the results there
+ *
+ * Every run gets a JVM of its own, since the controller keeps its state in
+ * static fields. The columns are:
+ *
+ *   trips/train-h   trips between two stations per train and virtual hour
+ *   cells/s         mean speed of a train, in cells per virtual second
+ *   wait %          share of the trains' time spent waiting for semaphores
+ *   cpu ms          CPU time of the controller (not of the simulator)
+ *   gc ms           time spent in garbage collection, and number of runs
+ *   crashes         collisions and derailments, the run is no good if > 0
+ */
+public class ThroughputBench {
+
+    private static final String HEADER = String.format("%-12s %6s %6s %14s %8s %7s %8s %11s %8s",
+            "map", "trains", "speed", "trips/train-h", "cells/s", "wait %", "cpu ms", "gc ms", "crashes");
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--run")) {
+            runOne(args);
+            return;
+        }
+        String[] maps = {"bana"};
+        String[] trains = {"2"};
+        String[] speeds = {"10", "14", "18"};
+        String duration = "600", scale = "10", locks = "fifo";
+        String csv = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--maps=")) {
+                maps = value.split(",");
+            } else if (arg.startsWith("--trains=")) {
+                trains = value.split(",");
+            } else if (arg.startsWith("--speeds=")) {
+                speeds = value.split(",");
+            } else if (arg.startsWith("--duration=")) {
+                duration = value;
+            } else if (arg.startsWith("--scale=")) {
+                scale = value;
+            } else if (arg.startsWith("--locks=")) {
+                locks = value;
+            } else if (arg.startsWith("--csv=")) {
+                csv = value;
+            }
+        }
+
+        PrintWriter csvOut = null;
+        if (csv != null) {
+            csvOut = new PrintWriter(new File(csv));
+            csvOut.println("map,trains,speed,trips,cells,time,waitNanos,cpuNanos,gcMillis,gcCount,collisions,derailments");
+        }
+        int maxSpeed = 0;
+        for (String speed : speeds) {
+            maxSpeed = Math.max(maxSpeed, Integer.parseInt(speed));
+        }
+        System.out.println(HEADER);
+        for (String map : maps) {
+            for (String numTrains : trains) {
+                File file = prepareMap(map, Integer.parseInt(numTrains), maxSpeed);
+                if (file == null) {
+                    System.out.println(String.format("%-12s %6s   (the map has fewer trains)", map, numTrains));
+                    continue;
+                }
+                for (String speed : speeds) {
+                    Map<String, String> r = fork(file, speed, duration, scale, locks);
+                    if (r == null) {
+                        continue;
+                    }
+                    print(map, speed, r);
+                    if (csvOut != null) {
+                        csvOut.println(map + "," + r.get("trains") + "," + speed + "," + r.get("trips")
+                                + "," + r.get("cells") + "," + r.get("time") + "," + r.get("waitNanos")
+                                + "," + r.get("cpuNanos") + "," + r.get("gcMillis") + "," + r.get("gcCount")
+                                + "," + r.get("collisions") + "," + r.get("derailments"));
+                        csvOut.flush();
+                    }
+                }
+                file.delete();
+            }
+        }
+        if (csvOut != null) {
+            csvOut.close();
+        }
+    }
+
+    private static void print(String map, String speed, Map<String, String> r) {
+        int trains = Integer.parseInt(r.get("trains"));
+        double time = Double.parseDouble(r.get("time"));
+        double trainSeconds = trains * time;
+        double waited = Long.parseLong(r.get("waitNanos")) / 1e9;
+        System.out.println(String.format("%-12s %6d %6s %14.2f %8.2f %7.1f %8d %6d (%2s) %8d",
+                map, trains, speed,
+                Integer.parseInt(r.get("trips")) / (trainSeconds / 3600),
+                Double.parseDouble(r.get("cells")) / trainSeconds,
+                100 * waited / trainSeconds,
+                Long.parseLong(r.get("cpuNanos")) / 1000000,
+                Long.parseLong(r.get("gcMillis")), r.get("gcCount"),
+                Integer.parseInt(r.get("collisions")) + Integer.parseInt(r.get("derailments"))));
+    }
+
+    /**
+     * A copy of the map with only the first numTrains trains, or a
+     * generated one with sensors for maxSpeed
+     *
+     * @return null if the map has fewer trains
+     */
+    private static File prepareMap(String map, int numTrains, int maxSpeed) throws IOException {
+        File file = File.createTempFile("throughput", ".map");
+        if (map.startsWith("gen:")) {
+            double side = Math.sqrt(Double.parseDouble(map.substring(4)));
+            MapGenerator generator = new MapGenerator((int) Math.ceil(22 * side),
+                    (int) Math.ceil(15 * side), maxSpeed, 1);
+            generator.layLines(1);
+            generator.layCrossovers(0.3, 0.3);
+            generator.placeTrains(numTrains);
+            writeLines(file, generator.placeSensors("speed", maxSpeed));
+        } else {
+            List<String> lines = new ArrayList<String>();
+            Scanner sc = new Scanner(new File(map));
+            int kept = 0;
+            while (sc.hasNextLine()) {
+                String line = sc.nextLine();
+                if (line.startsWith("T ")) {
+                    if (kept == numTrains) {
+                        continue;
+                    }
+                    kept++;
+                }
+                lines.add(line);
+            }
+            sc.close();
+            if (kept < numTrains) {
+                file.delete();
+                return null;
+            }
+            writeLines(file, lines);
+        }
+        return file;
+    }
+
+    private static void writeLines(File file, List<String> lines) throws FileNotFoundException {
+        PrintWriter out = new PrintWriter(file);
+        for (String line : lines) {
+            out.println(line);
+        }
+        out.close();
+    }
+
+    /**
+     * Run one combination in a new JVM
+     *
+     * @return the results, null if the run failed
+     */
+    private static Map<String, String> fork(File map, String speed, String duration,
+            String scale, String locks) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java";
+        Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "ThroughputBench", "--run", map.getPath(), speed, duration, scale, locks).start();
+        final LinkedList<String> errors = new LinkedList<String>();
+        drain(p.getErrorStream(), errors);
+        BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+        Map<String, String> result = null;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("RESULT ")) {
+                result = new HashMap<String, String>();
+                for (String field : line.substring(7).split(" ")) {
+                    int eq = field.indexOf('=');
+                    result.put(field.substring(0, eq), field.substring(eq + 1));
+                }
+            }
+        }
+        p.waitFor();
+        if (result == null) {
+            System.out.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ run failed, last output: ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+            synchronized (errors) {
+                for (String e : errors) {
+                    System.out.println("  " + e);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Keep the last lines the controller prints, for when it fails
+     */
+    private static void drain(final InputStream stream, final LinkedList<String> lines) {
+        Thread t = new Thread() {
+
+            @Override
+            public void run() {
+                BufferedReader in = new BufferedReader(new InputStreamReader(stream));
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        synchronized (lines) {
+                            lines.add(line);
+                            if (lines.size() > 20) {
+                                lines.removeFirst();
+                            }
+                        }
+                    }
+                } catch (IOException ex) {
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * The forked JVM: --run mapfile speed duration scale locks
+     */
+    private static void runOne(String[] args) throws Exception {
+        File map = new File(args[1]);
+        int[] speeds = new int[1000];
+        Arrays.fill(speeds, Integer.parseInt(args[2]));
+        double duration = Double.parseDouble(args[3]);
+        double scale = Double.parseDouble(args[4]);
+        GlobalSemaphores.setPolicy(OccupancyLock.Policy.valueOf(args[5].toUpperCase()));
+
+        HeadlessTSim sim = new HeadlessTSim(map, scale);
+        TSimInterface.init(sim.getTransport());
+        sim.start();
+        new Lab1(map, speeds);
+        long gcMillis = -gcMillis();
+        long gcCount = -gcCount();
+        sim.run(duration);
+        gcMillis += gcMillis();
+        gcCount += gcCount();
+
+        System.out.println("RESULT trains=" + sim.getNumTrains() + " trips=" + sim.getTrips()
+                + " cells=" + sim.getCellsMoved() + " time=" + sim.getTime() + " scale=" + scale
+                + " waitNanos=" + GlobalSemaphores.totalWaitNanos()
+                + " cpuNanos=" + controllerCpuNanos(sim)
+                + " gcMillis=" + gcMillis + " gcCount=" + gcCount
+                + " collisions=" + sim.getCollisions() + " derailments=" + sim.getDerailments());
+        System.exit(0);
+    }
+
+    /**
+     * CPU time of all live threads but the simulator's
+     */
+    private static long controllerCpuNanos(HeadlessTSim sim) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Set<Long> simThreads = new HashSet<Long>();
+        for (Thread t : sim.getThreads()) {
+            simThreads.add(t.getId());
+        }
+        long sum = 0;
+        for (long id : threads.getAllThreadIds()) {
+            long cpu = threads.getThreadCpuTime(id);
+            if (cpu > 0 && !simThreads.contains(id)) {
+                sum += cpu;
+            }
+        }
+        return sum;
+    }
+
+    private static long gcMillis() {
+        long sum = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sum += Math.max(0, gc.getCollectionTime());
+        }
+        return sum;
+    }
+
+    private static long gcCount() {
+        long sum = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sum += Math.max(0, gc.getCollectionCount());
+        }
+        return sum;
+    }
+}
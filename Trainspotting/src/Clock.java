@@ -0,0 +1,18 @@
+
+/**
+ * Where the controller gets the time from and how it waits. TrainPhysics
+ * holds the one in use: the wall clock by default, a faster one or a
+ * VirtualClock when the trains run in HeadlessTSim.
+ */
+public interface Clock {
+
+    /**
+     * @return nanoseconds from some fixed point
+     */
+    long nanoTime();
+
+    /**
+     * Wait for the given milliseconds of this clock's time
+     */
+    void sleep(long millis) throws InterruptedException;
+}
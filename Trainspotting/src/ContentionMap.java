@@ -0,0 +1,138 @@
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the trains got in each other's way: a heat map of the time spent
+ * waiting for every crossing and segment, drawn over the map, and a list of
+ * the worst of them with how often trains stopped for them, how long they
+ * were taken and how long the queues got. Printed on exit with --stats, it
+ * shows which tracks to double or which sensors to move.
+ *
+ * The times and queues come from the OccupancyLocks, the stops are counted
+ * here by Train.waitIfTakenThenGo().
+ */
+public class ContentionMap {
+
+    /**
+     * Bottlenecks listed in the report
+     */
+    public static final int TOP = 10;
+    private static final ConcurrentHashMap<TrackLock, AtomicLong> stops =
+            new ConcurrentHashMap<TrackLock, AtomicLong>();
+
+    /**
+     * A train stopped to wait for the lock
+     */
+    public static void stopped(TrackLock lock) {
+        AtomicLong c = stops.get(lock);
+        if (c == null) {
+            stops.putIfAbsent(lock, new AtomicLong());
+            c = stops.get(lock);
+        }
+        c.incrementAndGet();
+    }
+
+    public static long getStops(TrackLock lock) {
+        AtomicLong c = stops.get(lock);
+        return c == null ? 0 : c.get();
+    }
+
+    /**
+     * Print the heat map and the bottlenecks to stderr
+     */
+    public static void print(RailMap map) {
+        final Map<Point, OccupancyLock> byCell = new HashMap<Point, OccupancyLock>();
+        final Map<OccupancyLock, List<Point>> cells = new HashMap<OccupancyLock, List<Point>>();
+        Map<Point, TrackLock> semaphores = GlobalSemaphores.getSemaphores();
+        for (int x = 0; x < map.getWidth(); x++) {
+            for (int y = 0; y < map.getHeight(); y++) {
+                Point p = new Point(x, y);
+                if (map.getRailTypes(p) == null) {
+                    continue;
+                }
+                Point key = map.isCrossing(p) ? p : map.getSegmentKey(p);
+                TrackLock lock = key == null ? null : semaphores.get(key);
+                if (lock instanceof OccupancyLock) {
+                    OccupancyLock l = (OccupancyLock) lock;
+                    byCell.put(p, l);
+                    if (!cells.containsKey(l)) {
+                        cells.put(l, new ArrayList<Point>());
+                    }
+                    cells.get(l).add(p);
+                }
+            }
+        }
+        long worst = 0;
+        for (OccupancyLock l : cells.keySet()) {
+            worst = Math.max(worst, l.getTotalWaitNanos());
+        }
+        final long max = worst;
+
+        System.err.println("Contention (1-9: waited for, share of the worst; .: never"
+                + " waited for; *: switch or no semaphore):");
+        map.printAsciiMap(new RailMap.CellPainter() {
+
+            public char paint(Point p) {
+                OccupancyLock l = byCell.get(p);
+                if (l == null) {
+                    return '*';
+                }
+                long wait = l.getTotalWaitNanos();
+                if (wait == 0 || max == 0) {
+                    return '.';
+                }
+                return (char) ('1' + Math.min(8, (int) (9 * wait / max)));
+            }
+        });
+
+        List<OccupancyLock> ranked = new ArrayList<OccupancyLock>(cells.keySet());
+        Collections.sort(ranked, new Comparator<OccupancyLock>() {
+
+            public int compare(OccupancyLock a, OccupancyLock b) {
+                long d = b.getTotalWaitNanos() - a.getTotalWaitNanos();
+                if (d == 0) {
+                    d = getStops(b) - getStops(a);
+                }
+                return d < 0 ? -1 : d > 0 ? 1 : 0;
+            }
+        });
+        System.err.println("Bottlenecks:");
+        for (int i = 0; i < Math.min(TOP, ranked.size()); i++) {
+            OccupancyLock l = ranked.get(i);
+            if (l.getTotalWaitNanos() == 0 && getStops(l) == 0) {
+                break;
+            }
+            System.err.println(String.format("  %2d. %-28s waited %7.1f s, %4d stops,"
+                    + " occupied %3d%%, queue avg %.1f max %d",
+                    i + 1, describe(map, cells.get(l)), l.getTotalWaitNanos() / 1e9, getStops(l),
+                    Math.round(l.getOccupancy() * 100), l.getMeanQueueLength(),
+                    l.getMaxQueueLength()));
+        }
+    }
+
+    /**
+     * @return "crossing (x, y)", or "segment (x, y)-(x, y)" with the
+     *         corners of the box around the cells of a segment
+     */
+    private static String describe(RailMap map, List<Point> cells) {
+        Point first = cells.get(0);
+        if (cells.size() == 1 && map.isCrossing(first)) {
+            return "crossing " + first;
+        }
+        int minX = first.x, minY = first.y, maxX = first.x, maxY = first.y;
+        for (Point p : cells) {
+            minX = Math.min(minX, p.x);
+            minY = Math.min(minY, p.y);
+            maxX = Math.max(maxX, p.x);
+            maxY = Math.max(maxY, p.y);
+        }
+        return "segment " + new Point(minX, minY) + "-" + new Point(maxX, maxY);
+    }
+}
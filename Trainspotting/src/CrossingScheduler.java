@@ -0,0 +1,100 @@
+
+/**
+ * Books time windows at the crossings, so that a train that is going to
+ * meet another one at a crossing can slow down early and arrive when the
+ * crossing is free, instead of stopping at the sensor before it.
+ *
+ * A window lasts from the train reaching the sensor before the crossing
+ * until its end has passed the sensor after it. The windows a crossing
+ * gives out never overlap, a train that asks for a time that is taken gets
+ * the first free one after it. Windows are only advice: the crossing
+ * semaphore is still what keeps the trains apart, so a train that is late
+ * or early just waits at the sensor as before. Old windows are dropped when
+ * their time has passed.
+ *
+ * Times are TrainPhysics.now(), in seconds.
+ */
+public class CrossingScheduler {
+
+    /**
+     * Crossings further ahead than this many cells are not booked, the
+     * estimate of when the train gets there would be too rough
+     */
+    public static final int HORIZON = 40;
+    /**
+     * A train is never slowed down below this speed for a crossing
+     */
+    public static final int MIN_SPEED = 3;
+    private static final ReservationTable windows = new ReservationTable();
+    private static boolean enabled = true;
+
+    /**
+     * Turn the booking off, trains then always drive at their max speed
+     */
+    public static synchronized void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Book the crossing for a train distance cells away from it and work
+     * out how fast it should go to get there in its window
+     *
+     * @param motion how the train moves and brakes
+     * @return the speed to drive at, at most maxSpeed
+     */
+    public static synchronized int plan(Point crossing, int trainId, int distance, int maxSpeed,
+            MotionModel motion) {
+        double now = TrainPhysics.now();
+        int guard = motion.stoppingDistance(maxSpeed) + 1;
+        int approach = Math.max(0, distance - guard);
+        int speed = maxSpeed;
+        // a slower train is longer on the crossing, so book once more at
+        // the lower speed, what's still off is left to the semaphore
+        for (int pass = 0; pass < 2; pass++) {
+            double cellsPerSecond = motion.cellsPerSecond(speed);
+            double arrival = now + approach / cellsPerSecond;
+            double length = (2 * guard + TrainPhysics.TRAIN_LENGTH) / cellsPerSecond;
+            double start = reserve(crossing, trainId, arrival, length);
+            if (start <= arrival || start <= now) {
+                break;
+            }
+            int slower = (int) (approach / (start - now) / motion.cellsPerSecond(1));
+            speed = Math.max(MIN_SPEED, Math.min(speed, slower));
+        }
+        Metrics.increment("crossing reservations");
+        if (speed < maxSpeed) {
+            Metrics.increment("slowed down for crossings");
+        }
+        return speed;
+    }
+
+    /**
+     * The train has taken the crossing semaphore: it is on the crossing
+     * from now on, whatever it had booked
+     */
+    public static synchronized void occupy(Point crossing, int trainId, int speed,
+            MotionModel motion) {
+        double now = TrainPhysics.now();
+        int guard = motion.stoppingDistance(speed) + 1;
+        double length = (2 * guard + TrainPhysics.TRAIN_LENGTH) / motion.cellsPerSecond(speed);
+        windows.release(crossing, trainId);
+        windows.reserve(crossing, now, now + length, trainId);
+    }
+
+    /**
+     * Book the first free window of the given length that starts at
+     * earliest or later, instead of any window the train had here
+     *
+     * @return when the window starts
+     */
+    private static double reserve(Point crossing, int trainId, double earliest, double length) {
+        windows.release(crossing, trainId);
+        double start = windows.firstFree(crossing, earliest, length, trainId);
+        windows.reserve(crossing, start, start + length, trainId);
+        return start;
+    }
+}
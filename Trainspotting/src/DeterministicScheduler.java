@@ -0,0 +1,176 @@
+
+import TSim.InMemoryTransport;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lets the train threads run one at a time, in an order picked by a seeded
+ * Random, so that a run with the same seed and the same input from the
+ * simulator goes the same way every time, races and deadlocks included.
+ *
+ * A train thread waits for its turn when it starts and whenever it has been
+ * woken up (awaitTurn()), and gives it up before it blocks (yieldTurn()):
+ * waiting for a sensor, for a semaphore or on the clock. Turns are handed
+ * out by whoever feeds the controller (HeadlessTSim in virtual time, or
+ * ReplayPacer), from awaitIdle(): once no controller thread runs, one of the
+ * threads waiting for a turn gets it, and so on until none is left. The
+ * threads are ordered by id before picking, so the order they happened to
+ * wake up in doesn't matter.
+ *
+ * Without an installed scheduler awaitTurn() and yieldTurn() do nothing.
+ */
+public class DeterministicScheduler {
+
+    private static final int QUIET_CHECKS = 3;
+    private static final long QUIET_CHECK_NANOS = 50000;
+    private static volatile DeterministicScheduler current;
+    private final Random random;
+    // guarded by this
+    private final List<Thread> ready = new ArrayList<Thread>();
+    private Thread running;
+    private long turns;
+
+    public DeterministicScheduler(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Schedule the train threads started from now on, null to let them run
+     * freely again
+     */
+    public static void install(DeterministicScheduler s) {
+        current = s;
+    }
+
+    public static DeterministicScheduler getCurrent() {
+        return current;
+    }
+
+    /**
+     * Wait until the calling thread gets its turn. Not interruptible, the
+     * interrupt is kept for the caller to see.
+     */
+    public static void awaitTurn() {
+        DeterministicScheduler s = current;
+        if (s != null) {
+            s.await(Thread.currentThread());
+        }
+    }
+
+    /**
+     * Give up the calling thread's turn, before blocking
+     */
+    public static void yieldTurn() {
+        DeterministicScheduler s = current;
+        if (s != null) {
+            s.yield(Thread.currentThread());
+        }
+    }
+
+    private synchronized void await(Thread t) {
+        if (running == t) {
+            return;
+        }
+        ready.add(t);
+        boolean interrupted = false;
+        while (running != t) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            t.interrupt();
+        }
+    }
+
+    private synchronized void yield(Thread t) {
+        if (running == t) {
+            running = null;
+        }
+    }
+
+    /**
+     * Give the turn to one of the threads waiting for it, picked by the seed
+     *
+     * @return false if some thread has the turn or none is waiting
+     */
+    public synchronized boolean next() {
+        if (running != null || ready.isEmpty()) {
+            return false;
+        }
+        Collections.sort(ready, new Comparator<Thread>() {
+
+            public int compare(Thread a, Thread b) {
+                return a.getId() < b.getId() ? -1 : a.getId() > b.getId() ? 1 : 0;
+            }
+        });
+        running = ready.remove(random.nextInt(ready.size()));
+        turns++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return how many turns have been handed out
+     */
+    public synchronized long getTurns() {
+        return turns;
+    }
+
+    /**
+     * Wait until the controller has done all it can with what it has been
+     * told so far: no thread of the caller's group but the caller is
+     * running, and nothing waits in the transport. Turns are handed out
+     * meanwhile if a scheduler is installed.
+     *
+     * A thread that has just been woken may not have started running yet,
+     * so this must hold for a few checks in a row. A thread that waits on
+     * the wall clock (as MapDiffWatcher does) counts as done.
+     *
+     * @param transport the simulator's side, null if there is none to wait
+     *                  for
+     */
+    public static void awaitIdle(InMemoryTransport transport) throws InterruptedException {
+        Thread self = Thread.currentThread();
+        Thread[] all = new Thread[0];
+        int quiet = 0;
+        while (true) {
+            Thread.yield();
+            LockSupport.parkNanos(QUIET_CHECK_NANOS);
+            if (self.isInterrupted()) {
+                throw new InterruptedException();
+            }
+            ThreadGroup group = self.getThreadGroup();
+            if (all.length <= group.activeCount()) {
+                all = new Thread[group.activeCount() * 2 + 1];
+            }
+            int n = group.enumerate(all);
+            boolean idle = transport == null || transport.isIdle();
+            for (int i = 0; i < n && idle; i++) {
+                idle = all[i] == self || !isRunning(all[i]);
+            }
+            quiet = idle ? quiet + 1 : 0;
+            if (quiet == QUIET_CHECKS) {
+                DeterministicScheduler s = current;
+                if (s == null || !s.next()) {
+                    return;
+                }
+                quiet = 0;
+            }
+        }
+    }
+
+    /**
+     * A thread without Java frames runs no controller code, such as the
+     * one waiting for the JVM to exit once main() has returned
+     */
+    private static boolean isRunning(Thread t) {
+        return t.getState() == Thread.State.RUNNABLE && t.getStackTrace().length > 0;
+    }
+}
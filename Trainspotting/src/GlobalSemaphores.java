@@ -1,36 +1,126 @@
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.concurrent.Semaphore;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
- * A global store with the semaphores, the semaphore is not going to get created
- * until a train actually needs it.
+ * A global store with the semaphores. Before the trains start, warmUp()
+ * creates the semaphore of every crossing and segment of the map and freezes
+ * the store: from then on findOrCreate() is a lookup in a map that never
+ * changes, without any locking, and a key that wasn't created at warm-up is
+ * an error. Without warm-up (benchmarks, tools) semaphores are created the
+ * first time they are asked for.
+ *
+ * The semaphores are OccupancyLocks, their state lives in chunks of
+ * AtomicIntegerArrays so that the uncontended path is a single CAS.
+ * When the map is split over several controllers the semaphores shared
+ * between regions are RemoteTrackLocks instead.
  */
 public class GlobalSemaphores {
 
-    private static HashMap<Point, Semaphore> semaphores = new HashMap<Point, Semaphore>();
+    private static final int CHUNK_SIZE = 64;
+    private static HashMap<Point, TrackLock> semaphores = new HashMap<Point, TrackLock>();
+    private static ArrayList<TrackLock> creationOrder = new ArrayList<TrackLock>();
+    private static AtomicIntegerArray currentChunk = new AtomicIntegerArray(CHUNK_SIZE);
+    private static int nextSlot = 0;
+    private static OccupancyLock.Policy policy = OccupancyLock.Policy.FIFO;
+    private static Set<Point> remoteKeys = new HashSet<Point>();
+    private static volatile Map<Point, TrackLock> frozen = null;
+
+    /**
+     * Set the policy used by semaphores created from now on
+     */
+    public static synchronized void setPolicy(OccupancyLock.Policy p) {
+        policy = p;
+    }
+
+    /**
+     * Semaphores stored under these keys are kept by the ShardCoordinator
+     */
+    public static synchronized void setRemote(Set<Point> keys) {
+        remoteKeys = new HashSet<Point>(keys);
+    }
 
-    // must be synchronized so not 2 sempahores get created at same time.
     /**
      * Get a segment for a 4-crossing
      *
      * @param p point of railwaycrossing
      * @return semaphore corresponding to 4-crossing
+     * @throws IllegalStateException if the store is frozen and there is no
+     *         semaphore for p
      */
-    public static synchronized Semaphore findOrCreate(Point p) {
+    public static TrackLock findOrCreate(Point p) {
+        Map<Point, TrackLock> table = frozen;
+        if (table == null) {
+            return create(p);
+        }
+        TrackLock s = table.get(p);
+        if (s == null) {
+            throw new IllegalStateException("no semaphore for " + p + " was created at warm-up");
+        }
+        return s;
+    }
+
+    // must be synchronized so not 2 sempahores get created at same time.
+    private static synchronized TrackLock create(Point p) {
         if (semaphores.containsKey(p)) {
-            Semaphore s = semaphores.get(p);
-//            System.err.println("Retrieving existing semaphore " + p + ":" + s);
+            return semaphores.get(p);
+        } else if (remoteKeys.contains(p)) {
+            TrackLock s = new RemoteTrackLock(p);
+            semaphores.put(p, s);
+            creationOrder.add(s);
             return s;
         } else {
-            Semaphore s = new Semaphore(1, true);
+            if (nextSlot == CHUNK_SIZE) {
+                currentChunk = new AtomicIntegerArray(CHUNK_SIZE);
+                nextSlot = 0;
+            }
+            OccupancyLock s = new OccupancyLock(currentChunk, nextSlot++, policy, p.toString());
             semaphores.put(p, s);
-//            System.err.println("Created new semaphore at " + p + ":" + s);
-            System.err.println("Num semaphores: " + semaphores.size());
+            creationOrder.add(s);
             return s;
         }
     }
 
+    /**
+     * Create the semaphores of every crossing, of every segment with a
+     * sensor and of the segments the trains start on, then freeze the store.
+     * Calling it again (after the map has changed) adds the new semaphores
+     * and freezes the store again, the old ones are kept.
+     */
+    public static synchronized void warmUp(RailMap map) {
+        int before = semaphores.size();
+        for (Point p : map.getCrossings()) {
+            create(p);
+        }
+        for (Point p : map.getSensors()) {
+            Point key = map.getSegmentKey(p);
+            if (key != null) {
+                create(key);
+            }
+        }
+        for (int tid = 1; tid <= map.getNumTrains(); tid++) {
+            Point key = map.getSegmentKey(map.trainStartPos(tid));
+            if (key != null) {
+                create(key);
+            }
+        }
+        frozen = Collections.unmodifiableMap(new HashMap<Point, TrackLock>(semaphores));
+        System.err.println("Preallocated " + (semaphores.size() - before) + " semaphores, "
+                + semaphores.size() + " in total");
+    }
+
+    /**
+     * @return true if warmUp() has been called
+     */
+    public static boolean isFrozen() {
+        return frozen != null;
+    }
+
     /**
      * Get segemntial semaphore.
      *
@@ -40,13 +130,47 @@ public class GlobalSemaphores {
      * @param p2 other endpoint of railway (must be prehacked)
      * @return semaphore corresponding to given segment
      */
-    public static Semaphore findOrCreate2(Point p1, Point p2) {
-        return findOrCreate(sortHackMerge(p1, p2));
+    public static TrackLock findOrCreate2(Point p1, Point p2) {
+        return findOrCreate(segmentKey(p1, p2));
     }
 
-    private static Point sortHackMerge(Point p1, Point p2) {
+    /**
+     * @return every semaphore by the key it is stored under
+     */
+    public static synchronized Map<Point, TrackLock> getSemaphores() {
+        return new HashMap<Point, TrackLock>(semaphores);
+    }
+
+    /**
+     * Print the contention statistics of every semaphore to stderr
+     */
+    public static synchronized void printStatistics() {
+        System.err.println("Semaphore statistics (" + policy + "):");
+        for (TrackLock s : creationOrder) {
+            System.err.println("  " + s.statistics());
+        }
+    }
+
+    /**
+     * @return the time trains have spent waiting for the local semaphores
+     */
+    public static synchronized long totalWaitNanos() {
+        long sum = 0;
+        for (TrackLock s : creationOrder) {
+            if (s instanceof OccupancyLock) {
+                sum += ((OccupancyLock) s).getTotalWaitNanos();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The key a segment semaphore is stored under, the same whichever
+     * order the (prehacked) endpoints are given in
+     */
+    static Point segmentKey(Point p1, Point p2) {
         if (1000 * p1.x + p1.y > 1000 * p2.x + p2.y) {
-            return sortHackMerge(p2, p1);
+            return segmentKey(p2, p1);
         }
         return new Point(p1.x * 1000 + p1.y, p2.x * 1000 + p2.y);
     }
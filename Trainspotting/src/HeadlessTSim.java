@@ -0,0 +1,540 @@
+
+import TSim.CommandStatus;
+import TSim.InMemoryTransport;
+import TSim.MappedRingTransport;
+import TSim.SensorEvent;
+import TSim.TSimInformation;
+import TSim.TSimInterface;
+import TSim.TSimProtocol;
+import TSim.TrainErrorEvent;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+/**
+ * A simulator without a window, for running the controller in the same JVM
+ * (see InMemoryTransport) as fast as the machine allows, or in a process of
+ * its own over a memory mapped file (see serveRing() and main()).
+ *
+ * Trains move cell by cell along the rails of the map at
+ * TrainPhysics.cellsPerSecond() and brake and accelerate with
+ * TrainPhysics.DECELERATION, so a train that gets the stop command at a
+ * sensor stops within TrainPhysics.stoppingDistance() cells. A sensor is
+ * active while a train is on it. Switches follow RailMap.switchStateFor(),
+ * the same model of tsim the controller uses. Collisions, derailments and
+ * hitting the end of a line stop the train for good, as in tsim.
+ *
+ * Time is virtual and the controller is given a Clock that keeps it (see
+ * TrainPhysics.setClock()). Either it runs timeScale times faster than the
+ * wall clock, or, with a timeScale of 0, it only moves on when the
+ * controller has done all it can with what it has been told so far: after
+ * every step that sent an event or woke a sleeping train, the simulator
+ * waits until no thread but its own can run and nothing is waiting in the
+ * transport (see DeterministicScheduler.awaitIdle()). Then a simulated day
+ * takes as long as the controller needs to think, and a slow machine gives
+ * the same runs as a fast one. With a DeterministicScheduler installed the
+ * trains also take their turns in the same order every time.
+ *
+ * A trip is counted every time a train comes to a stop at a station other
+ * than the one it last stopped at. Stations are the cells of the map marked
+ * "station" or, for maps without any, the ends of the lines.
+ */
+public class HeadlessTSim {
+
+    /**
+     * How close to a station a train must stop, in cells
+     */
+    public static final int STATION_RADIUS = 3;
+    /**
+     * Simulated seconds moved at a time in virtual time
+     */
+    public static final double VIRTUAL_STEP = 0.02;
+    private static final int TICK_MILLIS = 2;
+    private final RailMap railMap;
+    private final double timeScale;
+    private final InMemoryTransport transport = new InMemoryTransport();
+    private MappedRingTransport.Simulator ring; // null unless serving one
+    private final List<Point> stations = new ArrayList<Point>();
+    private final List<SimTrain> trains = new ArrayList<SimTrain>();
+    private final Map<Point, Integer> switchStates = new HashMap<Point, Integer>();
+    private final Map<Point, SimTrain> occupied = new HashMap<Point, SimTrain>();
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private final VirtualClock clock; // null unless time is virtual
+    private double time;
+    private int eventsSent;
+    // statistics
+    private int trips;
+    private int collisions;
+    private int derailments;
+    private int commands;
+    private double cellsMoved;
+
+    /**
+     * @param timeScale how many virtual seconds pass per wall clock second,
+     *                  0 to move on as soon as the controller is done
+     */
+    public HeadlessTSim(File mapFile, double timeScale) throws FileNotFoundException {
+        this.railMap = new RailMap(mapFile);
+        this.timeScale = timeScale;
+        if (timeScale == 0) {
+            clock = new VirtualClock();
+            TrainPhysics.setClock(clock);
+        } else {
+            clock = null;
+            TrainPhysics.setClock(new ScaledClock(timeScale));
+        }
+        Scanner sc = new Scanner(mapFile);
+        while (sc.hasNextLine()) {
+            String[] sline = sc.nextLine().trim().split(" ");
+            if (sline[0].equals("R") && sline[sline.length - 1].equals("station")) {
+                stations.add(new Point(Integer.parseInt(sline[1]), Integer.parseInt(sline[2])));
+            } else if (sline[0].equals("T")) {
+                Point p = new Point(Integer.parseInt(sline[1]), Integer.parseInt(sline[2]));
+                int length = Integer.parseInt(sline[3]);
+                int dir = 0;
+                while (!DirectionArrays.dirNames[dir].equals(sline[4])) {
+                    dir++;
+                }
+                trains.add(new SimTrain(trains.size() + 1, p, dir, length));
+            }
+        }
+        sc.close();
+        if (stations.isEmpty()) {
+            stations.addAll(railMap.getEnds());
+        }
+        for (Point p : railMap.getSwitches()) {
+            switchStates.put(p, TSimInterface.SWITCH_LEFT);
+        }
+    }
+
+    /**
+     * Runs the simulator for a controller in another process:
+     *
+     *   java HeadlessTSim [--scale=factor] [--duration=seconds] map ringfile
+     *
+     * It creates the ring file, so it must be started before the controller,
+     * which is then run with -Dtsim.transport=mmap:ringfile. The time runs
+     * scale times faster than the wall clock (1 by default). The trips,
+     * collisions and derailments are printed when the duration is over.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        double scale = 1;
+        double duration = Double.POSITIVE_INFINITY;
+        List<String> files = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("--scale=")) {
+                scale = Double.parseDouble(arg.substring("--scale=".length()));
+            } else if (arg.startsWith("--duration=")) {
+                duration = Double.parseDouble(arg.substring("--duration=".length()));
+            } else {
+                files.add(arg);
+            }
+        }
+        if (files.size() != 2 || scale <= 0) {
+            System.err.println("usage: java HeadlessTSim [--scale=factor] [--duration=seconds] map ringfile");
+            System.exit(1);
+        }
+        HeadlessTSim sim = new HeadlessTSim(new File(files.get(0)), scale);
+        sim.serveRing(new File(files.get(1)));
+        sim.start();
+        sim.run(duration);
+        System.out.println(sim.getTrips() + " trips, " + sim.getCollisions() + " collisions, "
+                + sim.getDerailments() + " derailments, " + sim.getCommands() + " commands in "
+                + sim.getTime() + " s");
+        System.exit(0);
+    }
+
+    /**
+     * The transport to give TSimInterface.init()
+     */
+    public InMemoryTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Talk to a controller in another process over the given file instead
+     * of the in-memory transport, the controller opens it with
+     * tsim.transport=mmap:file. Must be called before start(), and only
+     * with a timeScale above 0: virtual time needs the controller in this
+     * JVM to see when it is done.
+     */
+    public void serveRing(File file) throws IOException {
+        if (clock != null) {
+            throw new IllegalStateException("virtual time needs the controller in the same JVM");
+        }
+        ring = new MappedRingTransport.Simulator(file, MappedRingTransport.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Start answering the commands of the controller, the trains don't move
+     * until run() is called
+     */
+    public void start() {
+        Thread commandThread = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        int[] command;
+                        if (ring != null) {
+                            command = new int[4];
+                            ring.takeCommand(command);
+                        } else {
+                            command = transport.takeCommand();
+                        }
+                        deliver(new CommandStatus(execute(command)));
+                    }
+                } catch (InterruptedException ex) {
+                }
+            }
+        };
+        commandThread.setDaemon(true);
+        commandThread.start();
+        threads.add(commandThread);
+    }
+
+    /**
+     * Move the trains until the given virtual time has passed, in the
+     * calling thread
+     */
+    public void run(double seconds) throws InterruptedException {
+        threads.add(Thread.currentThread());
+        double end = time + seconds;
+        if (clock != null) {
+            runVirtual(end);
+            return;
+        }
+        long last = System.nanoTime();
+        while (time < end) {
+            Thread.sleep(TICK_MILLIS);
+            long now = System.nanoTime();
+            advance(Math.min(end - time, (now - last) / 1e9 * timeScale));
+            last = now;
+        }
+    }
+
+    /**
+     * Step by step, waiting for the controller after every step it may
+     * have something to do for
+     */
+    private void runVirtual(double end) throws InterruptedException {
+        boolean woken = true; // by the commands sent before
+        while (time < end) {
+            if (woken) {
+                DeterministicScheduler.awaitIdle(transport);
+            }
+            int sent = eventsSent;
+            advance(Math.min(VIRTUAL_STEP, end - time));
+            woken = clock.advanceTo(time) | eventsSent != sent;
+        }
+    }
+
+    private synchronized int execute(int[] command) {
+        commands++;
+        if (command[0] == TSimProtocol.SET_SPEED) {
+            if (command[1] < 1 || command[1] > trains.size()) {
+                return CommandStatus.NO_SUCH_TRAIN;
+            }
+            if (Math.abs(command[2]) > TrainPhysics.MAX_SPEED) {
+                return CommandStatus.ILLEGAL_SPEED;
+            }
+            trains.get(command[1] - 1).targetSpeed = command[2];
+            return CommandStatus.OK;
+        }
+        Point p = new Point(command[1], command[2]);
+        if (!switchStates.containsKey(p)) {
+            return CommandStatus.NO_SUCH_SWITCH;
+        }
+        if (occupied.containsKey(p)) {
+            return CommandStatus.TRAIN_ON_SWITCH;
+        }
+        switchStates.put(p, command[3]);
+        return CommandStatus.OK;
+    }
+
+    private synchronized void advance(double dt) {
+        time += dt;
+        for (SimTrain t : trains) {
+            t.advance(dt);
+        }
+    }
+
+    /**
+     * The direction a train leaves a cell in after entering it moving in
+     * the given direction
+     *
+     * @return -1 if the rails end there, -2 if the train derails
+     */
+    private int through(Point p, int dir) {
+        String[] rails = railMap.getRailTypes(p);
+        if (rails == null) {
+            return -2;
+        }
+        int from = (dir + 2) % 4;
+        List<Integer> exits = new ArrayList<Integer>();
+        for (String rail : rails) {
+            int sides = sides(rail);
+            if ((sides & (1 << from)) != 0 && Integer.bitCount(sides) == 2) {
+                exits.add(Integer.numberOfTrailingZeros(sides & ~(1 << from)));
+            }
+        }
+        if (exits.isEmpty()) {
+            return rails.length == 1 && Integer.bitCount(sides(rails[0])) == 1 ? -1 : -2;
+        }
+        Integer state = switchStates.get(p);
+        if (state == null) {
+            return exits.get(0);
+        }
+        for (int exit : exits) {
+            if (railMap.switchStateFor(p, dir, exit) == state) {
+                return exit;
+            }
+        }
+        // coming in from the branch the switch isn't set for
+        return -2;
+    }
+
+    /**
+     * @return the sides of a cell the rail connects, as a bit per direction
+     */
+    private static int sides(String rail) {
+        if (rail.equals("HorizontalRail")) {
+            return (1 << 0) | (1 << 2);
+        }
+        if (rail.equals("VerticalRail")) {
+            return (1 << 1) | (1 << 3);
+        }
+        int sides = 0;
+        for (int dir = 0; dir < 4; dir++) {
+            if (rail.indexOf(DirectionArrays.dirNames[dir]) >= 0) {
+                sides |= 1 << dir;
+            }
+        }
+        return sides;
+    }
+
+    private void send(TSimInformation event) {
+        eventsSent++;
+        deliver(event);
+    }
+
+    private void deliver(TSimInformation info) {
+        if (ring == null) {
+            transport.send(info);
+            return;
+        }
+        // the command thread and the stepping thread both send, and the
+        // ring takes one producer at a time
+        synchronized (ring) {
+            if (info instanceof CommandStatus) {
+                ring.sendStatus(((CommandStatus) info).getStatus());
+            } else if (info instanceof SensorEvent) {
+                SensorEvent e = (SensorEvent) info;
+                ring.sendSensor(e.getTrainId(), e.getXpos(), e.getYpos(), e.getStatus());
+            } else {
+                TrainErrorEvent e = (TrainErrorEvent) info;
+                ring.sendTrainEvent(e.getTrainId(), e.getEvent());
+            }
+        }
+    }
+
+    private boolean isSensor(Point p) {
+        return railMap.getSensor(p) != null;
+    }
+
+    /**
+     * The threads of the simulator, so that their CPU time can be told
+     * apart from the controller's
+     */
+    public List<Thread> getThreads() {
+        return threads;
+    }
+
+    public synchronized double getTime() {
+        return time;
+    }
+
+    public synchronized int getTrips() {
+        return trips;
+    }
+
+    public synchronized int getCollisions() {
+        return collisions;
+    }
+
+    public synchronized int getDerailments() {
+        return derailments;
+    }
+
+    public synchronized int getCommands() {
+        return commands;
+    }
+
+    public synchronized double getCellsMoved() {
+        return cellsMoved;
+    }
+
+    public int getNumTrains() {
+        return trains.size();
+    }
+
+    /**
+     * One cell a train is on, with the directions it enters and leaves it
+     * in when moving forwards (-1 if the rails end there)
+     */
+    private static class Cell {
+
+        final Point p;
+        final int in;
+        final int out;
+
+        Cell(Point p, int in, int out) {
+            this.p = p;
+            this.in = in;
+            this.out = out;
+        }
+    }
+
+    private class SimTrain {
+
+        final int id;
+        final LinkedList<Cell> cells = new LinkedList<Cell>(); // head first
+        double speed;
+        int targetSpeed;
+        double progress; // how far into the next cell
+        boolean crashed;
+        boolean moving;
+        int lastStation = -1;
+
+        SimTrain(int id, Point head, int dir, int length) {
+            this.id = id;
+            // walk backwards from the head to lay out the rest of the train
+            Point p = head;
+            int out = dir;
+            for (int i = 0; i < length; i++) {
+                int back = through(p, (out + 2) % 4);
+                int in = back < 0 ? -1 : (back + 2) % 4;
+                cells.addLast(new Cell(p, in, out));
+                occupied.put(p, this);
+                if (in < 0) {
+                    break;
+                }
+                p = Point.createNewAndMove(p, back);
+                out = in;
+            }
+        }
+
+        void advance(double dt) {
+            if (crashed) {
+                return;
+            }
+            double step = TrainPhysics.DECELERATION * TrainPhysics.CELLS_PER_SECOND * dt;
+            double before = speed;
+            if (speed < targetSpeed) {
+                speed = Math.min(targetSpeed, speed + step);
+            } else {
+                speed = Math.max(targetSpeed, speed - step);
+            }
+            if (before * speed < 0) {
+                // stand still for a tick before reversing, so that the stop
+                // is seen even if braking doesn't end on exactly 0
+                speed = 0;
+            }
+            if (Math.signum(before) != Math.signum(speed)) {
+                progress = 0;
+            }
+            if (speed == 0) {
+                if (moving) {
+                    moving = false;
+                    stopped();
+                }
+                return;
+            }
+            moving = true;
+            double cells = TrainPhysics.cellsPerSecond((before + speed) / 2) * dt;
+            cellsMoved += cells;
+            progress += cells;
+            while (progress >= 1 && !crashed) {
+                progress -= 1;
+                move(speed > 0);
+            }
+        }
+
+        void move(boolean forwards) {
+            Cell from = forwards ? cells.getFirst() : cells.getLast();
+            int dir = forwards ? from.out : (from.in + 2) % 4;
+            if ((forwards ? from.out : from.in) < 0) {
+                crash(TrainErrorEvent.STOP_COLLISION);
+                return;
+            }
+            Point p = Point.createNewAndMove(from.p, dir);
+            SimTrain other = occupied.get(p);
+            if (other != null) {
+                collisions++;
+                crash(TrainErrorEvent.TRAIN_COLLISION);
+                other.crash(TrainErrorEvent.TRAIN_COLLISION);
+                return;
+            }
+            int exit = through(p, dir);
+            if (exit == -2) {
+                derailments++;
+                crash(TrainErrorEvent.DERAILMENT);
+                return;
+            }
+            Cell left;
+            if (forwards) {
+                cells.addFirst(new Cell(p, dir, exit));
+                left = cells.removeLast();
+            } else {
+                cells.addLast(new Cell(p, exit < 0 ? -1 : (exit + 2) % 4, (dir + 2) % 4));
+                left = cells.removeFirst();
+            }
+            occupied.put(p, this);
+            occupied.remove(left.p);
+            if (isSensor(p)) {
+                send(new SensorEvent(id, p.x, p.y, SensorEvent.ACTIVE));
+            }
+            if (isSensor(left.p)) {
+                send(new SensorEvent(id, left.p.x, left.p.y, SensorEvent.INACTIVE));
+            }
+        }
+
+        void crash(int event) {
+            crashed = true;
+            speed = 0;
+            send(new TrainErrorEvent(id, event));
+        }
+
+        /**
+         * Came to a stop, count a trip if it is at a new station
+         */
+        void stopped() {
+            for (int i = 0; i < stations.size(); i++) {
+                if (isNear(stations.get(i))) {
+                    if (lastStation >= 0 && lastStation != i) {
+                        trips++;
+                    }
+                    lastStation = i;
+                    return;
+                }
+            }
+        }
+
+        boolean isNear(Point station) {
+            for (Cell c : cells) {
+                if (Math.abs(station.x - c.p.x) <= STATION_RADIUS
+                        && Math.abs(station.y - c.p.y) <= STATION_RADIUS) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
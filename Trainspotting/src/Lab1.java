@@ -1,41 +1,249 @@
 
 import TSim.*;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 
 /**
  * This class just parses the program parameters and then starts the trains.
+ *
+ * Usage: java Lab1 [options] mapfile [speed1 speed2 ...]
+ *
+ * Options:
+ *   --locks=fifo|barging|priority   how contended semaphores are handed over
+ *                                   (default fifo)
+ *   --stats                         print semaphore statistics,
+ *                                   metrics and a contention heat map (see
+ *                                   ContentionMap) on exit
+ *   --diffs=file                    apply the map changes in file (see
+ *                                   MapDiff) every time it is modified
+ *   --shard=i/n --coordinator=port  only control region i of n, started
+ *                                   this way by ShardCoordinator
+ *   --listen=port                   wait for the simulator to connect on
+ *                                   port instead of using stdin/stdout
+ *   --connect=host:port             connect to a simulator listening there
+ *   --timetable=file                drive the trains to the stations in
+ *                                   file (see Timetable) by a plan
+ *   --no-routing                    don't head for the stations of the map
+ *                                   (see StationRouter), just go back and
+ *                                   forth
+ *   --no-reservations               don't book crossings ahead (see
+ *                                   CrossingScheduler), stop at them instead
+ *   --priority=train:class,...      put trains in priority classes, higher
+ *                                   classes get contended semaphores first
+ *                                   (implies --locks=priority)
+ *   --aging=seconds                 how long a train waits for a semaphore
+ *                                   to count as one class higher (default 2,
+ *                                   0 turns aging off)
+ *   --clamp-speeds                  lower speeds a train can't stop from in
+ *                                   the tightest braking distance of the
+ *                                   map, instead of only warning
+ *   --replay=file                   play back a recording made with
+ *                                   -Dtsim.record=file instead of talking to
+ *                                   the simulator, in virtual time and with
+ *                                   the trains taking turns (see ReplayPacer)
+ *   --seed=n                        the order the trains take their turns in
+ *                                   with --replay (default 0)
  */
 public final class Lab1 {
 
     private final RailMap railMap;
+    private static Timetable timetable;
+    private static boolean routing = true;
+    private static volatile RailMap running; // for the statistics on exit
 
     public static void main(String[] args) {
-        String fileName = args[0];
+        ArrayList<String> positional = new ArrayList<String>();
+        boolean stats = false;
+        File diffFile = null;
+        int shard = -1;
+        int numShards = 1;
+        int port = 0;
+        String listen = null;
+        String connect = null;
+        String replay = null;
+        String seed = null;
+        boolean policyGiven = false;
+        boolean priorities = false;
+        for (String arg : args) {
+            if (arg.startsWith("--locks=")) {
+                String policy = arg.substring("--locks=".length()).toUpperCase();
+                GlobalSemaphores.setPolicy(OccupancyLock.Policy.valueOf(policy));
+                policyGiven = true;
+            } else if (arg.startsWith("--priority=")) {
+                for (String entry : arg.substring("--priority=".length()).split(",")) {
+                    String[] parts = entry.split(":");
+                    Train.setPriorityClass(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+                }
+                priorities = true;
+            } else if (arg.startsWith("--aging=")) {
+                setAging(arg.substring("--aging=".length()));
+            } else if (arg.startsWith("--diffs=")) {
+                diffFile = new File(arg.substring("--diffs=".length()));
+            } else if (arg.startsWith("--shard=")) {
+                String[] parts = arg.substring("--shard=".length()).split("/");
+                shard = Integer.parseInt(parts[0]);
+                numShards = Integer.parseInt(parts[1]);
+            } else if (arg.startsWith("--coordinator=")) {
+                port = Integer.parseInt(arg.substring("--coordinator=".length()));
+            } else if (arg.startsWith("--listen=")) {
+                listen = arg.substring("--listen=".length());
+            } else if (arg.startsWith("--connect=")) {
+                connect = arg.substring("--connect=".length());
+            } else if (arg.startsWith("--replay=")) {
+                replay = arg.substring("--replay=".length());
+            } else if (arg.startsWith("--seed=")) {
+                seed = arg.substring("--seed=".length());
+            } else if (arg.startsWith("--timetable=")) {
+                String name = arg.substring("--timetable=".length());
+                try {
+                    timetable = new Timetable(new File(name));
+                } catch (FileNotFoundException ex) {
+                    System.err.println("Didn't find given timetable: " + name);
+                }
+            } else if (arg.equals("--no-routing")) {
+                routing = false;
+            } else if (arg.equals("--clamp-speeds")) {
+                Train.setSpeedClamping(true);
+            } else if (arg.equals("--no-reservations")) {
+                CrossingScheduler.setEnabled(false);
+            } else if (arg.equals("--stats")) {
+                stats = true;
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (priorities && !policyGiven) {
+            GlobalSemaphores.setPolicy(OccupancyLock.Policy.PRIORITY);
+        }
+        String fileName = positional.get(0);
         int[] trainSpeeds = new int[1000];
         for (int i = 0; i < 1000; i++) {
             trainSpeeds[i] = 10; //10 is trainspeed if not specified
-            if (i < args.length - 1) {
-                trainSpeeds[i] = Integer.parseInt(args[i + 1]);
+            if (i < positional.size() - 1) {
+                trainSpeeds[i] = Integer.parseInt(positional.get(i + 1));
             }
         }
         File file = new File(fileName);
         if (!file.exists()) {
             System.err.println("Didn't find given file: " + fileName);
         }
-        new Lab1(file, trainSpeeds);
+        if (stats) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+
+                @Override
+                public void run() {
+                    GlobalSemaphores.printStatistics();
+                    TSimInterface tsim = TSimInterface.getInstance();
+                    Metrics.add("speed commands", tsim.getSpeedCommandsSent());
+                    Metrics.add("speed commands dropped", tsim.getSpeedCommandsDropped());
+                    Metrics.add("speed commands coalesced", tsim.getSpeedCommandsCoalesced());
+                    Metrics.print();
+                    if (running != null) {
+                        ContentionMap.print(running.snapshot());
+                    }
+                }
+            });
+        }
+        if (seed != null && replay == null) {
+            System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ --seed only works with --replay, ignored ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+        }
+        Lab1 lab1;
+        try {
+            if (replay != null) {
+                VirtualClock clock = new VirtualClock();
+                TrainPhysics.setClock(clock);
+                DeterministicScheduler.install(new DeterministicScheduler(
+                        seed == null ? 0 : Long.parseLong(seed)));
+                TSimInterface.init(new ReplayPacer(replay, clock));
+            } else if (listen != null) {
+                System.err.println("Waiting for the simulator on port " + listen);
+                TSimInterface.init(SocketTransport.listen(Integer.parseInt(listen)));
+            } else if (connect != null) {
+                int colon = connect.lastIndexOf(':');
+                TSimInterface.init(SocketTransport.connect(new InetSocketAddress(
+                        connect.substring(0, colon), Integer.parseInt(connect.substring(colon + 1)))));
+            }
+            lab1 = new Lab1(file, trainSpeeds, shard, numShards, port);
+        } catch (IOException ex) {
+            System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ can't connect: " + ex.getMessage() + " ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+            System.exit(1);
+            return;
+        }
+        if (diffFile != null) {
+            new MapDiffWatcher(diffFile, lab1.railMap).start();
+        }
     }
 
     public Lab1(File file, int[] trainSpeeds) {
         railMap = new RailMap(file);
+        GlobalSemaphores.warmUp(railMap);
         TSimInterface.getInstance().setDebug(false);
-        startTrains(trainSpeeds);
+        startTrains(trainSpeeds, null);
     }
 
-    private void startTrains(int[] trainSpeeds) {
+    /**
+     * Control only one region of the map
+     *
+     * @param shard the region, -1 for the whole map
+     * @param port  where the ShardCoordinator listens
+     */
+    public Lab1(File file, int[] trainSpeeds, int shard, int numShards, int port)
+            throws IOException {
+        railMap = new RailMap(file);
+        ShardContext context = null;
+        if (shard >= 0) {
+            MapPartition partition = new MapPartition(railMap, numShards);
+            GlobalSemaphores.setRemote(partition.getSharedKeys());
+            // the controllers of the neighbouring regions set switches
+            // and the speeds of the trains handed over too
+            railMap.disableSwitchCache();
+            TSimInterface.getInstance().setShadowing(false);
+            RemoteTrackLock.setPort(port);
+            context = new ShardContext(railMap, partition, shard, port);
+            context.start();
+        }
+        GlobalSemaphores.warmUp(railMap);
+        TSimInterface.getInstance().setDebug(false);
+        startTrains(trainSpeeds, context);
+    }
+
+    /**
+     * @param seconds how long a train waits for a semaphore to count as
+     *                one priority class higher
+     */
+    static void setAging(String seconds) {
+        double s = Double.parseDouble(seconds);
+        OccupancyLock.setAging((long) (s * 1e9 / Train.CLASS_WEIGHT));
+    }
+
+    private void startTrains(int[] trainSpeeds, ShardContext shard) {
 //        railMap.printAsciiMap();
+        running = railMap;
+        Train.setBrakingRoom(new MapValidator(railMap).getMinRoom());
+        TimetablePlanner planner = null;
+        if (timetable != null && shard == null) {
+            planner = new TimetablePlanner(railMap, timetable);
+            // the plan books the crossings itself
+            CrossingScheduler.setEnabled(false);
+        } else if (timetable != null) {
+            System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ timetables don't work with regions, ignored ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+        }
+        StationRouter router = null;
+        if (planner == null && routing && shard == null && !railMap.getStations().isEmpty()) {
+            router = new StationRouter(railMap);
+        }
 
         for (int tid = 1; tid <= railMap.getNumTrains(); tid++) {
+            if (shard != null && !shard.ownsStart(tid)) {
+                continue;
+            }
             Train t = new Train(railMap, trainSpeeds[tid - 1], tid);
+            t.setShard(shard);
+            t.setTimetable(planner);
+            t.setRouter(router);
             t.start();
         }
     }
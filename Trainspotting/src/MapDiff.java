@@ -0,0 +1,68 @@
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * A change to a running map: rails and sensors added or removed.
+ * Members are public for simplicity of usage.
+ *
+ * The text format is one change per line:
+ *
+ *   +R x y numRails rail1 rail2 ... Sensor|NoSensor   (add or replace rail)
+ *   -R x y                                            (remove rail)
+ *   +S x y                                            (add sensor)
+ *   -S x y                                            (remove sensor)
+ */
+public class MapDiff {
+
+    public static final int ADD_RAIL = 0;
+    public static final int REMOVE_RAIL = 1;
+    public static final int ADD_SENSOR = 2;
+    public static final int REMOVE_SENSOR = 3;
+    public final List<Change> changes = new ArrayList<Change>();
+
+    public static class Change {
+
+        public int kind;
+        public Point pos;
+        public String[] rails; // only for ADD_RAIL
+        public boolean sensor; // only for ADD_RAIL
+
+        public Change(int kind, Point pos, String[] rails, boolean sensor) {
+            this.kind = kind;
+            this.pos = pos;
+            this.rails = rails;
+            this.sensor = sensor;
+        }
+    }
+
+    public static MapDiff parse(File file) throws FileNotFoundException {
+        MapDiff diff = new MapDiff();
+        Scanner sc = new Scanner(file);
+        while (sc.hasNextLine()) {
+            String line = sc.nextLine().trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            String[] sline = line.substring(1).trim().split(" ");
+            boolean add = line.charAt(0) == '+';
+            Point p = new Point(Integer.parseInt(sline[1]), Integer.parseInt(sline[2]));
+            if (sline[0].equals("S")) {
+                diff.changes.add(new Change(add ? ADD_SENSOR : REMOVE_SENSOR, p, null, false));
+            } else if (!add) {
+                diff.changes.add(new Change(REMOVE_RAIL, p, null, false));
+            } else {
+                int numRails = Integer.parseInt(sline[3]);
+                String[] rails = new String[numRails];
+                System.arraycopy(sline, 4, rails, 0, numRails);
+                boolean isSensor = sline[sline.length - 1].equals("Sensor");
+                diff.changes.add(new Change(ADD_RAIL, p, rails, isSensor));
+            }
+        }
+        sc.close();
+        return diff;
+    }
+}
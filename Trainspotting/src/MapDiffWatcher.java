@@ -0,0 +1,45 @@
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+/**
+ * Watches a diff file and applies it to the map every time it changes, so
+ * rails and sensors can be changed without restarting the trains.
+ */
+public class MapDiffWatcher extends Thread {
+
+    private static final long POLL_INTERVAL = 1000;
+    private final File file;
+    private final RailMap railMap;
+    private long lastModified;
+
+    public MapDiffWatcher(File file, RailMap railMap) {
+        this.file = file;
+        this.railMap = railMap;
+        this.lastModified = file.lastModified();
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                sleep(POLL_INTERVAL);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            long modified = file.lastModified();
+            if (modified == lastModified) {
+                continue;
+            }
+            lastModified = modified;
+            try {
+                railMap.applyDiff(MapDiff.parse(file));
+            } catch (FileNotFoundException ex) {
+                System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ diff file disappeared: " + file + " ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+            } catch (RuntimeException ex) {
+                System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ bad diff file: " + ex + " ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+            }
+        }
+    }
+}
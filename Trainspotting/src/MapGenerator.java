@@ -0,0 +1,276 @@
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.Set;
+
+/**
+ * Writes synthetic maps, to try the solution and the benchmarks on maps much
+ * bigger than the ones tsim comes with.
+ *
+ * The map is a stack of horizontal lines, each ending in a stop rail at both
+ * ends. Neighbouring lines are joined by crossovers: a switch on the upper
+ * line, a vertical track and a switch on the lower line. A crossover can also
+ * skip a line, it then crosses it in a crossing. Pairs of lines can be closed
+ * into loops at both ends instead of ending in stop rails.
+ *
+ * Crossovers only go in slots a fixed number of cells apart, and the lines
+ * are far enough apart, so that every arm of a switch, crossing or end is
+ * long enough for a sensor at the distance the given speed needs. The
+ * sensors are then put following the rules in the README, by SensorPlacer.
+ *
+ * Usage: java MapGenerator [options] outputmap
+ *
+ * Options:
+ *   --width=40 --height=30   size of the map in cells
+ *   --scale=n                instead of the size: about n times the area of bana
+ *   --loops=1                pairs of lines closed into loops
+ *   --switches=0.3           chance of a crossover in every slot
+ *   --crossings=0.3          chance of a crossover skipping a line
+ *   --sensors=speed|optimise|none   where to put the sensors (default speed)
+ *   --speed=15               the speed the sensors are put for
+ *   --trains=2               number of trains, each on a segment of its own
+ *   --seed=1
+ */
+public class MapGenerator {
+
+    private final int width;
+    private final int height;
+    private final int gap;
+    private final int spacing;
+    private final Random random;
+    private final String[][] rails;
+    private final List<Integer> lineRows = new ArrayList<Integer>();
+    private final List<Point> trains = new ArrayList<Point>();
+    private int first;
+    private int last;
+
+    /**
+     * @param speed the highest speed the map is made for, it decides how
+     *        far apart the switches and crossings are
+     */
+    public MapGenerator(int width, int height, int speed, long seed) {
+        this.width = width;
+        this.height = height;
+        int distance = TrainPhysics.stoppingDistance(speed) + 1;
+        // the sensors for the two ends of a vertical track must not pass each
+        // other, and there must be room for a train between the sensors of
+        // every piece of line
+        this.gap = 2 * distance + 1;
+        this.spacing = 2 * distance + TrainPhysics.TRAIN_LENGTH + 3;
+        this.random = new Random(seed);
+        this.rails = new String[width][height];
+    }
+
+    public static void main(String[] args) throws FileNotFoundException {
+        int width = 40, height = 30, loops = 1, speed = 15, numTrains = 2;
+        double switches = 0.3, crossings = 0.3;
+        long seed = 1;
+        String sensors = "speed";
+        String out = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--width=")) {
+                width = Integer.parseInt(value);
+            } else if (arg.startsWith("--height=")) {
+                height = Integer.parseInt(value);
+            } else if (arg.startsWith("--scale=")) {
+                // keep the proportions of bana
+                double side = Math.sqrt(Double.parseDouble(value));
+                width = (int) Math.ceil(22 * side);
+                height = (int) Math.ceil(15 * side);
+            } else if (arg.startsWith("--loops=")) {
+                loops = Integer.parseInt(value);
+            } else if (arg.startsWith("--switches=")) {
+                switches = Double.parseDouble(value);
+            } else if (arg.startsWith("--crossings=")) {
+                crossings = Double.parseDouble(value);
+            } else if (arg.startsWith("--sensors=")) {
+                sensors = value;
+            } else if (arg.startsWith("--speed=")) {
+                speed = Integer.parseInt(value);
+            } else if (arg.startsWith("--trains=")) {
+                numTrains = Integer.parseInt(value);
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(value);
+            } else {
+                out = arg;
+            }
+        }
+
+        MapGenerator generator = new MapGenerator(width, height, speed, seed);
+        generator.layLines(loops);
+        generator.layCrossovers(switches, crossings);
+        generator.placeTrains(numTrains);
+        List<String> lines = generator.placeSensors(sensors, speed);
+        if (lines == null) {
+            System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ no safe sensor placement found ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+            System.exit(1);
+        }
+
+        PrintWriter writer = new PrintWriter(new File(out));
+        for (String line : lines) {
+            writer.println(line);
+        }
+        writer.close();
+
+        RailMap railMap = new RailMap(new File(out));
+        MapValidator validator = new MapValidator(railMap);
+        System.err.println(width + "x" + height + ", " + railMap.getSwitches().size()
+                + " switches, " + railMap.getCrossings().size() + " crossings, "
+                + railMap.getSensors().size() + " sensors, " + railMap.getNumTrains()
+                + " trains, max safe speed " + validator.getMaxSafeSpeed());
+    }
+
+    /**
+     * Lay the horizontal lines and close the first pairs of them into loops
+     */
+    public void layLines(int loops) {
+        first = 1;
+        last = width - 2;
+        for (int y = 1; y < height - 1; y += gap) {
+            lineRows.add(y);
+            for (int x = first + 1; x < last; x++) {
+                put(x, y, "HorizontalRail");
+            }
+        }
+        for (int i = 0; i < lineRows.size(); i++) {
+            int y = lineRows.get(i);
+            if (i % 2 == 1 && i / 2 < loops) {
+                continue; // the lower line of a loop, done with the upper one
+            }
+            if (i % 2 == 0 && i / 2 < loops && i + 1 < lineRows.size()) {
+                int y2 = lineRows.get(i + 1);
+                put(first, y, "DownRightRail");
+                put(last, y, "DownLeftRail");
+                put(first, y2, "UpRightRail");
+                put(last, y2, "UpLeftRail");
+                for (int v = y + 1; v < y2; v++) {
+                    put(first, v, "VerticalRail");
+                    put(last, v, "VerticalRail");
+                }
+            } else {
+                put(first, y, "LeftStopRail");
+                put(last, y, "RightStopRail");
+            }
+        }
+    }
+
+    /**
+     * Join the lines by crossovers. A crossover goes down to the right, so
+     * the upper switch turns down from the left and the lower one turns
+     * right coming from above.
+     */
+    public void layCrossovers(double switches, double crossings) {
+        for (int x = first + spacing; x <= last - spacing; x += spacing) {
+            for (int i = 0; i + 1 < lineRows.size(); i++) {
+                if (random.nextDouble() >= switches) {
+                    continue;
+                }
+                int lines = i + 2 < lineRows.size() && random.nextDouble() < crossings ? 2 : 1;
+                int top = lineRows.get(i);
+                int bottom = lineRows.get(i + lines);
+                put(x, top, "HorizontalRail", "DownLeftRail");
+                put(x, bottom, "HorizontalRail", "UpRightRail");
+                for (int y = top + 1; y < bottom; y++) {
+                    if (y == lineRows.get(i + 1)) {
+                        put(x, y, "HorizontalRail", "VerticalRail");
+                    } else {
+                        put(x, y, "VerticalRail");
+                    }
+                }
+                // the lines in between are taken in this slot
+                i += lines;
+            }
+        }
+    }
+
+    /**
+     * Put the trains in the middle of pieces of line between two slots, at
+     * most one on each piece, so that no two trains start on the same
+     * segment
+     */
+    public void placeTrains(int numTrains) {
+        List<Point> places = new ArrayList<Point>();
+        for (int y : lineRows) {
+            for (int x = first + spacing / 2; x < last; x += spacing) {
+                places.add(new Point(x, y));
+            }
+        }
+        Set<Point> segments = new HashSet<Point>();
+        RailMap railMap = new RailMap(new Scanner(text(getLines())));
+        while (trains.size() < numTrains && !places.isEmpty()) {
+            Point p = places.remove(random.nextInt(places.size()));
+            Point key = railMap.getSegmentKey(p);
+            if (key != null && segments.add(key)) {
+                trains.add(p);
+            }
+        }
+        if (trains.size() < numTrains) {
+            System.err.println("room for " + trains.size() + " trains only");
+        }
+    }
+
+    /**
+     * @param policy "speed" puts a sensor on every arm as far out as the
+     *        speed needs, "optimise" searches for the best placement (slow on
+     *        big maps), "none" leaves the map without sensors
+     * @return the map file lines, null if the sensors can't be placed
+     */
+    public List<String> placeSensors(String policy, int speed) {
+        List<String> lines = getLines();
+        if (policy.equals("none")) {
+            return lines;
+        }
+        SensorPlacer placer = new SensorPlacer(lines);
+        if (policy.equals("optimise")) {
+            return placer.optimise() ? placer.getPlacedLines() : null;
+        }
+        Set<Point> sensors = placer.placeAt(TrainPhysics.stoppingDistance(speed) + 1);
+        return sensors == null ? null : placer.getPlacedLines(sensors);
+    }
+
+    /**
+     * @return the map file lines, without sensors
+     */
+    public List<String> getLines() {
+        List<String> ret = new ArrayList<String>();
+        ret.add("TrainLineFile 2");
+        ret.add(width + " " + height);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                if (rails[x][y] != null) {
+                    ret.add("R " + x + " " + y + " " + rails[x][y] + " NoSensor");
+                }
+            }
+        }
+        for (int i = 0; i < trains.size(); i++) {
+            Point p = trains.get(i);
+            ret.add("T " + p.x + " " + p.y + " " + TrainPhysics.TRAIN_LENGTH + " "
+                    + (i % 2 == 0 ? "Left" : "Right"));
+        }
+        ret.add(".");
+        return ret;
+    }
+
+    private void put(int x, int y, String... types) {
+        StringBuilder sb = new StringBuilder().append(types.length);
+        for (String type : types) {
+            sb.append(' ').append(type);
+        }
+        rails[x][y] = sb.toString();
+    }
+
+    private static String text(List<String> lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append('\n');
+        }
+        return sb.toString();
+    }
+}
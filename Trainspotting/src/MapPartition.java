@@ -0,0 +1,190 @@
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits a map into regions so that each region can be controlled by its own
+ * Lab1 process. Regions are made of whole segments, so the border between two
+ * regions always goes through a switch.
+ *
+ * A train belongs to the region of the last sensor it hit. A semaphore that
+ * can be taken or released at sensors of more than one region is shared, and
+ * has to live in the ShardCoordinator rather than in one of the controllers.
+ *
+ * The partition only depends on the map and the number of regions, so the
+ * coordinator and every controller compute the same one.
+ */
+public class MapPartition {
+
+    private final int numRegions;
+    private final Map<Point, Integer> sensorRegion = new HashMap<Point, Integer>();
+    private final Map<Point, Integer> segmentRegion = new HashMap<Point, Integer>();
+    private final Map<Point, Set<Integer>> touchedBy = new HashMap<Point, Set<Integer>>();
+    private final Set<Point> shared = new HashSet<Point>();
+
+    public MapPartition(RailMap map, int numRegions) {
+        this.numRegions = numRegions;
+        assignRegions(map);
+        findShared(map);
+    }
+
+    /**
+     * Group the sensors by segment and hand out the segments from left to
+     * right, so that every region gets about the same number of sensors.
+     */
+    private void assignRegions(RailMap map) {
+        final Map<Point, List<Point>> groups = new HashMap<Point, List<Point>>();
+        for (Point p : map.getSensors()) {
+            Point key = map.getSegmentKey(p);
+            if (key == null) {
+                // a sensor on a switch or crossing, a group of its own
+                key = p;
+            }
+            if (!groups.containsKey(key)) {
+                groups.put(key, new ArrayList<Point>());
+            }
+            groups.get(key).add(p);
+        }
+
+        final Map<Point, Point> leftmost = new HashMap<Point, Point>();
+        for (Map.Entry<Point, List<Point>> e : groups.entrySet()) {
+            Point min = null;
+            for (Point p : e.getValue()) {
+                if (min == null || p.x < min.x || (p.x == min.x && p.y < min.y)) {
+                    min = p;
+                }
+            }
+            leftmost.put(e.getKey(), min);
+        }
+        List<Point> keys = new ArrayList<Point>(groups.keySet());
+        Collections.sort(keys, new Comparator<Point>() {
+
+            public int compare(Point a, Point b) {
+                Point pa = leftmost.get(a);
+                Point pb = leftmost.get(b);
+                if (pa.x != pb.x) {
+                    return pa.x - pb.x;
+                }
+                if (pa.y != pb.y) {
+                    return pa.y - pb.y;
+                }
+                return (a.x * 1000 + a.y) - (b.x * 1000 + b.y);
+            }
+        });
+
+        int total = map.getSensors().size();
+        int done = 0;
+        for (Point key : keys) {
+            int region = Math.min(numRegions - 1, done * numRegions / Math.max(1, total));
+            segmentRegion.put(key, region);
+            for (Point p : groups.get(key)) {
+                sensorRegion.put(p, region);
+            }
+            done += groups.get(key).size();
+        }
+    }
+
+    /**
+     * Follow what Sensor.getAction() does from every sensor and record from
+     * which regions every semaphore is taken and released.
+     */
+    private void findShared(RailMap map) {
+        for (Point p : map.getSensors()) {
+            int region = regionOf(p);
+            Point old = map.getSegmentKey(p);
+            touch(old, region);
+            for (int dir = 0; dir < 4; dir++) {
+                if (!map.canMoveInDirection(p, dir)) {
+                    continue;
+                }
+                SearchResult nextSensor = map.getNextSensor(p, dir);
+                if (nextSensor == null) {
+                    continue;
+                }
+                int nextRegion = regionOf(nextSensor.pos);
+
+                SearchResult nextCross = map.getNextCrossing(p, dir);
+                if (nextCross != null && nextCross.distance <= nextSensor.distance) {
+                    touch(nextCross.pos, region);
+                    touch(nextCross.pos, nextRegion);
+                }
+
+                SearchResult nextSwitch = map.getNextSwitch(p, dir);
+                if (nextSwitch != null && nextSwitch.distance <= nextSensor.distance) {
+                    touch(old, nextRegion);
+                    touch(map.getSegmentKey(nextSensor.pos), region);
+                    int alternative = map.otherSwitchDirection(nextSwitch.pos, nextSwitch.direction);
+                    SearchResult other = alternative < 0
+                            ? null : map.getNextSensor(nextSwitch.pos, alternative);
+                    if (other != null) {
+                        touch(old, regionOf(other.pos));
+                        touch(map.getSegmentKey(other.pos), region);
+                    }
+                }
+            }
+        }
+        for (int tid = 1; tid <= map.getNumTrains(); tid++) {
+            Point start = map.trainStartPos(tid);
+            touch(map.getSegmentKey(start), regionOf(map, start));
+        }
+        for (Map.Entry<Point, Set<Integer>> e : touchedBy.entrySet()) {
+            if (e.getValue().size() > 1) {
+                shared.add(e.getKey());
+            }
+        }
+    }
+
+    private void touch(Point key, int region) {
+        if (key == null) {
+            return;
+        }
+        Set<Integer> regions = touchedBy.get(key);
+        if (regions == null) {
+            regions = new HashSet<Integer>();
+            touchedBy.put(key, regions);
+        }
+        regions.add(region);
+    }
+
+    public int getNumRegions() {
+        return numRegions;
+    }
+
+    /**
+     * @return the region of the sensor at p, -1 if there is no sensor there
+     */
+    public int regionOf(Point p) {
+        Integer region = sensorRegion.get(p);
+        return region == null ? -1 : region;
+    }
+
+    /**
+     * The region of any point on a segment, used for the train start positions
+     */
+    public int regionOf(RailMap map, Point p) {
+        if (sensorRegion.containsKey(p)) {
+            return sensorRegion.get(p);
+        }
+        Point key = map.getSegmentKey(p);
+        Integer region = key == null ? null : segmentRegion.get(key);
+        return region == null ? 0 : region;
+    }
+
+    /**
+     * @return true if the semaphore stored under key is used by more than
+     *         one region
+     */
+    public boolean isShared(Point key) {
+        return shared.contains(key);
+    }
+
+    public Set<Point> getSharedKeys() {
+        return Collections.unmodifiableSet(shared);
+    }
+}
@@ -0,0 +1,183 @@
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Offline checker for the sensor placement rules in the README:
+ *
+ * - a sensor before each crossing, in all four directions,
+ * - a sensor before each switch, in all three directions,
+ * - a sensor before each turn-around point.
+ *
+ * A sensor only counts if the trains actually use it, i.e. it is the one
+ * Sensor.getAction() would pick, so the same searches as the trains do are
+ * used here. For every rule it also measures the room a train hitting the
+ * sensor has to stop before the crossing/switch/end. The highest safe speed
+ * is then read off TrainPhysics' braking model for the tightest room. That
+ * model is calibrated (see TrainPhysics.DECELERATION), not measured, so the
+ * speed is an assumption about tsim as much as a result about the map.
+ *
+ * Usage: java MapValidator mapfile [maxSpeed]
+ */
+public class MapValidator {
+
+    private final RailMap railMap;
+    private final List<String> violations = new ArrayList<String>();
+    private int minRoom = Integer.MAX_VALUE;
+    private int roomSum = 0;
+    private int numRooms = 0;
+    private String limitingRule = "no rules";
+
+    public MapValidator(RailMap railMap) {
+        this.railMap = railMap;
+        check();
+    }
+
+    public static void main(String[] args) {
+        RailMap railMap = new RailMap(new File(args[0]));
+        MapValidator validator = new MapValidator(railMap);
+        int speed = args.length > 1 ? Integer.parseInt(args[1]) : -1;
+        System.out.println(validator.report(speed));
+        System.exit(validator.getViolations(speed).isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * @return the placement violations, plus braking violations for the
+     *         given speed (none if speed < 0)
+     */
+    public List<String> getViolations(int speed) {
+        List<String> ret = new ArrayList<String>(violations);
+        if (speed >= 0 && TrainPhysics.stoppingDistance(speed) > minRoom) {
+            ret.add("speed " + speed + " needs " + TrainPhysics.stoppingDistance(speed)
+                    + " cells to stop, but " + limitingRule + " only leaves " + minRoom);
+        }
+        return ret;
+    }
+
+    /**
+     * Highest speed where every train can stop in time, 0 if the map
+     * breaks the placement rules
+     */
+    public int getMaxSafeSpeed() {
+        if (!violations.isEmpty()) {
+            return 0;
+        }
+        return TrainPhysics.maxSpeedFor(minRoom);
+    }
+
+    /**
+     * @return smallest number of cells any train has to stop in
+     */
+    public int getMinRoom() {
+        return minRoom;
+    }
+
+    /**
+     * @return average number of cells between a guarding sensor and what it
+     *         guards, i.e. how much track a train locks ahead of itself
+     */
+    public double getMeanRoom() {
+        return numRooms == 0 ? 0 : (double) roomSum / numRooms;
+    }
+
+    public String report(int speed) {
+        StringBuilder sb = new StringBuilder();
+        List<String> all = getViolations(speed);
+        for (String v : all) {
+            sb.append("VIOLATION: ").append(v).append('\n');
+        }
+        sb.append(all.size()).append(" violation(s)\n");
+        if (minRoom != Integer.MAX_VALUE) {
+            sb.append("Tightest braking distance: ").append(minRoom)
+                    .append(" cells, at ").append(limitingRule).append('\n');
+        }
+        sb.append("Max safe speed: ").append(getMaxSafeSpeed()).append('\n');
+        sb.append("(assumes TrainPhysics' braking model, stopping in speed^2 / ")
+                .append((int) (2 * TrainPhysics.DECELERATION))
+                .append(" cells, calibrated on bana rather than measured)");
+        return sb.toString();
+    }
+
+    private void check() {
+        // the directions each crossing/switch/end is guarded from, with
+        // the room the guarding sensor leaves for braking
+        HashMap<Point, int[]> guarded = new HashMap<Point, int[]>();
+        for (Point p : railMap.getSensors()) {
+            for (int dir = 0; dir < 4; dir++) {
+                if (railMap.canMoveInDirection(p, dir)) {
+                    checkSensor(p, dir, guarded);
+                }
+            }
+        }
+
+        checkGuarded(railMap.getCrossings(), "crossing", guarded);
+        checkGuarded(railMap.getSwitches(), "switch", guarded);
+        checkGuarded(railMap.getEnds(), "turn-around point", guarded);
+    }
+
+    /**
+     * Record what the sensor at p guards for trains leaving it with dir,
+     * mirroring the decisions in Sensor.getAction()
+     */
+    private void checkSensor(Point p, int dir, HashMap<Point, int[]> guarded) {
+        SearchResult nextSensor = railMap.getNextSensor(p, dir);
+        if (nextSensor == null) {
+            SearchResult end = railMap.findNextEnd(p, dir);
+            if (end != null) {
+                guard(guarded, end, end.direction, "turn-around point " + end.pos);
+            }
+            return;
+        }
+        SearchResult nextCross = railMap.getNextCrossing(p, dir);
+        if (nextCross != null && nextCross.distance <= nextSensor.distance) {
+            guard(guarded, nextCross, nextCross.direction, "crossing " + nextCross.pos);
+            // the semaphore is released at the next sensor, the train
+            // must have left the crossing by then
+            int after = nextSensor.distance - nextCross.distance;
+            if (after < TrainPhysics.TRAIN_LENGTH) {
+                violations.add("sensor " + nextSensor.pos + " releases crossing "
+                        + nextCross.pos + " after " + after + " cells, train is "
+                        + TrainPhysics.TRAIN_LENGTH + " long");
+            }
+        }
+        SearchResult nextSwitch = railMap.getNextSwitch(p, dir);
+        if (nextSwitch != null && nextSwitch.distance <= nextSensor.distance) {
+            guard(guarded, nextSwitch, nextSwitch.direction, "switch " + nextSwitch.pos);
+        }
+    }
+
+    private void guard(HashMap<Point, int[]> guarded, SearchResult target,
+            int arrivalDir, String what) {
+        int[] rooms = guarded.get(target.pos);
+        if (rooms == null) {
+            rooms = new int[]{-1, -1, -1, -1};
+            guarded.put(target.pos, rooms);
+        }
+        // trains may stop anywhere before the cell itself
+        int room = target.distance - 1;
+        roomSum += room;
+        numRooms++;
+        int side = (arrivalDir + 2) % 4;
+        rooms[side] = rooms[side] < 0 ? room : Math.min(rooms[side], room);
+        if (room < minRoom) {
+            minRoom = room;
+            limitingRule = what + " from " + DirectionArrays.dirNames[side];
+        }
+    }
+
+    private void checkGuarded(List<Point> points, String what,
+            HashMap<Point, int[]> guarded) {
+        for (Point p : points) {
+            int[] rooms = guarded.get(p);
+            for (int dir = 0; dir < 4; dir++) {
+                if (railMap.canMoveInDirection(p, dir)
+                        && (rooms == null || rooms[dir] < 0)) {
+                    violations.add("no sensor before " + what + " " + p
+                            + " from " + DirectionArrays.dirNames[dir]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters of what happened while the trains ran, printed on exit
+ * with --stats. Anything may add to a counter, it is created on first use.
+ */
+public class Metrics {
+
+    private static final Map<String, AtomicLong> counters = new TreeMap<String, AtomicLong>();
+
+    private static synchronized AtomicLong counter(String name) {
+        AtomicLong c = counters.get(name);
+        if (c == null) {
+            c = new AtomicLong();
+            counters.put(name, c);
+        }
+        return c;
+    }
+
+    public static void increment(String name) {
+        counter(name).incrementAndGet();
+    }
+
+    public static void add(String name, long amount) {
+        counter(name).addAndGet(amount);
+    }
+
+    /**
+     * Set the counter to value, for estimates that change over time
+     */
+    public static void set(String name, long value) {
+        counter(name).set(value);
+    }
+
+    /**
+     * Raise the counter to value if it is lower, for maximums
+     */
+    public static void max(String name, long value) {
+        AtomicLong c = counter(name);
+        long old;
+        while (value > (old = c.get())) {
+            c.compareAndSet(old, value);
+        }
+    }
+
+    public static long get(String name) {
+        return counter(name).get();
+    }
+
+    /**
+     * Print every counter to stderr
+     */
+    public static synchronized void print() {
+        System.err.println("Metrics:");
+        for (Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+            System.err.println("  " + e.getKey() + " = " + e.getValue().get());
+        }
+    }
+}
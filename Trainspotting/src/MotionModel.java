@@ -0,0 +1,139 @@
+
+/**
+ * What one train has shown of how it moves: the cells per second it covers
+ * per unit of speed, learned from the time between sensors it passes at a
+ * steady speed and the track distance between them. TrainPhysics is the
+ * model before anything has been seen.
+ *
+ * The stopping distance is scaled with the learned speed, a train that
+ * moves faster than TrainPhysics thinks takes the same time but more cells
+ * to stop. It is never taken to be shorter than TrainPhysics says, so what
+ * is learned can only make a train brake earlier or drive slower.
+ *
+ * Only used by the thread of its train.
+ */
+public class MotionModel {
+
+    /**
+     * Weight of a new sample in the running estimate
+     */
+    public static final double SMOOTHING = 0.3;
+    /**
+     * Samples needed before the estimate is used
+     */
+    public static final int MIN_SAMPLES = 3;
+    /**
+     * How much faster than TrainPhysics a train must be before its stopping
+     * distance is scaled up, so that timing noise doesn't slow down trains
+     * that are right at the limit of the map
+     */
+    public static final double TOLERANCE = 0.1;
+    private double cellsPerSecondPerSpeed = TrainPhysics.CELLS_PER_SECOND;
+    private int samples;
+    private Point lastSensor;
+    private int lastDir;
+    private double lastTime;
+    private int lastSpeed;
+    private boolean steady; // the speed hasn't changed since lastSensor
+    private boolean settled; // nor over the stretch before
+
+    /**
+     * The train hits a sensor moving in dir at speed
+     */
+    public void sensorHit(RailMap map, Point sensor, int dir, int speed) {
+        double now = TrainPhysics.now();
+        if (lastSensor != null && steady && settled && speed != 0 && speed == lastSpeed) {
+            int distance = distance(map, lastSensor, lastDir, sensor);
+            if (distance > 0 && now > lastTime) {
+                sample(distance / (now - lastTime) / Math.abs(speed));
+            }
+        }
+        settled = steady && speed == lastSpeed;
+        steady = true;
+        lastSensor = sensor;
+        lastDir = dir;
+        lastTime = now;
+        lastSpeed = speed;
+    }
+
+    /**
+     * The train has been told to drive at speed
+     */
+    public void speedSet(int speed) {
+        if (speed != lastSpeed) {
+            steady = false;
+        }
+    }
+
+    private void sample(double value) {
+        cellsPerSecondPerSpeed = samples == 0 ? value
+                : (1 - SMOOTHING) * cellsPerSecondPerSpeed + SMOOTHING * value;
+        samples++;
+    }
+
+    /**
+     * @return cells between the sensor at from and the one at to along the
+     *         track, past at most one switch either way, 0 if to isn't the
+     *         next sensor from there
+     */
+    private static int distance(RailMap map, Point from, int dir, Point to) {
+        SearchResult next = map.getNextSensor(from, dir);
+        if (next != null && next.pos.equals(to)) {
+            return next.distance;
+        }
+        SearchResult sw = map.getNextSwitch(from, dir);
+        if (sw == null || (next != null && sw.distance > next.distance)) {
+            return 0;
+        }
+        int alternative = map.otherSwitchDirection(sw.pos, sw.direction);
+        if (alternative < 0) {
+            return 0;
+        }
+        SearchResult other = map.getNextSensor(sw.pos, alternative);
+        return other != null && other.pos.equals(to) ? sw.distance + other.distance : 0;
+    }
+
+    public boolean isLearned() {
+        return samples >= MIN_SAMPLES;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return the learned cells per second at given speed, TrainPhysics'
+     *         until enough has been seen
+     */
+    public double cellsPerSecond(int speed) {
+        return isLearned() ? Math.abs(speed) * cellsPerSecondPerSpeed
+                : TrainPhysics.cellsPerSecond(speed);
+    }
+
+    /**
+     * @return cells the train needs to stop from given speed, at least
+     *         TrainPhysics.stoppingDistance()
+     */
+    public int stoppingDistance(int speed) {
+        double ratio = cellsPerSecond(speed) / TrainPhysics.cellsPerSecond(speed);
+        int nominal = TrainPhysics.stoppingDistance(speed);
+        if (!isLearned() || speed == 0 || ratio <= 1 + TOLERANCE) {
+            return nominal;
+        }
+        speed = Math.abs(speed);
+        int scaled = (int) Math.ceil(speed * speed / (2 * TrainPhysics.DECELERATION) * ratio);
+        return Math.max(nominal, scaled);
+    }
+
+    /**
+     * @return highest speed, at most max, that can stop within the given
+     *         number of cells
+     */
+    public int safeSpeed(int room, int max) {
+        int speed = 0;
+        while (speed < max && stoppingDistance(speed + 1) <= room) {
+            speed++;
+        }
+        return speed;
+    }
+}
@@ -0,0 +1,304 @@
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A binary lock guarding one piece of track (a crossing or a segment).
+ *
+ * The state of the lock is one slot in a shared AtomicIntegerArray, so
+ * taking a free lock is a single CAS and never touches a queue. Only when
+ * the lock is taken the caller is queued, and then the policy decides who
+ * gets it next:
+ *
+ * BARGING  - whoever wins the CAS after a release gets it, waiters retry.
+ * FIFO     - the lock is handed over to the oldest waiter.
+ * PRIORITY - the lock is handed over to the waiter with highest priority,
+ *            ties are broken in FIFO order. A waiter's priority grows
+ *            the longer it waits (see setAging()), so that a steady
+ *            stream of important callers can't starve the others.
+ *
+ * A blocked lock has a state of its own in the slot, so that the CAS fails
+ * for it just as for a taken one.
+ *
+ * Waits, aging and statistics are in TrainPhysics time, so that they mean
+ * the same when the trains run on a faster clock.
+ */
+public class OccupancyLock implements TrackLock {
+
+    public enum Policy {
+
+        BARGING, FIFO, PRIORITY
+    }
+
+    private static final int FREE = 0;
+    private static final int TAKEN = 1;
+    private static final int BLOCKED = 2;
+    private static volatile long agingNanos = 20000000L;
+    private final AtomicIntegerArray slots;
+    private final int slot;
+    private final Policy policy;
+    private final String name;
+    // guarded by this
+    private final ArrayList<Waiter> waiters = new ArrayList<Waiter>();
+    // statistics
+    private final AtomicLong fastAcquires = new AtomicLong();
+    private final AtomicLong slowAcquires = new AtomicLong();
+    private final AtomicLong failedTries = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong heldNanos = new AtomicLong();
+    private final long createdAt = TrainPhysics.nanoTime();
+    private volatile long takenAt;
+    private int maxQueueLength;
+    private long queued; // waiters queued so far
+    private long queueSum; // the queue length each of them saw
+
+    /**
+     * @param slots  the array holding the lock state
+     * @param slot   the index in slots this lock owns
+     * @param policy how the lock is handed over under contention
+     * @param name   name used in statistics
+     */
+    public OccupancyLock(AtomicIntegerArray slots, int slot, Policy policy, String name) {
+        this.slots = slots;
+        this.slot = slot;
+        this.policy = policy;
+        this.name = name;
+    }
+
+    /**
+     * With the PRIORITY policy a waiter gains one priority for every
+     * nanos it has waited, 0 turns aging off. Applies to all locks.
+     */
+    public static void setAging(long nanos) {
+        agingNanos = nanos;
+    }
+
+    public boolean tryAcquire() {
+        if (slots.compareAndSet(slot, FREE, TAKEN)) {
+            takenAt = TrainPhysics.nanoTime();
+            fastAcquires.incrementAndGet();
+            return true;
+        }
+        failedTries.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @param priority higher is served earlier, only used by PRIORITY
+     */
+    public void acquire(int priority) throws InterruptedException {
+        if (slots.compareAndSet(slot, FREE, TAKEN)) {
+            takenAt = TrainPhysics.nanoTime();
+            fastAcquires.incrementAndGet();
+            return;
+        }
+        long start = TrainPhysics.nanoTime();
+        Waiter w = new Waiter(Thread.currentThread(), priority, start);
+        synchronized (this) {
+            if (isBlocked()) {
+                throw new TrackBlockedException(name);
+            }
+            waiters.add(w);
+            maxQueueLength = Math.max(maxQueueLength, waiters.size());
+            queued++;
+            queueSum += waiters.size();
+            // the lock may have been released before we got queued
+            if (slots.compareAndSet(slot, FREE, TAKEN)) {
+                takenAt = TrainPhysics.nanoTime();
+                waiters.remove(w);
+                w.granted = true;
+            }
+        }
+        while (!w.granted) {
+            if (w.blocked) {
+                throw new TrackBlockedException(name);
+            }
+            DeterministicScheduler.yieldTurn();
+            LockSupport.park(this);
+            DeterministicScheduler.awaitTurn();
+            if (policy == Policy.BARGING && !w.granted && !w.blocked) {
+                synchronized (this) {
+                    if (slots.compareAndSet(slot, FREE, TAKEN)) {
+                        takenAt = TrainPhysics.nanoTime();
+                        waiters.remove(w);
+                        w.granted = true;
+                    }
+                }
+            }
+            if (!w.granted && Thread.interrupted()) {
+                cancel(w);
+                throw new InterruptedException();
+            }
+        }
+        long waited = TrainPhysics.nanoTime() - start;
+        slowAcquires.incrementAndGet();
+        totalWaitNanos.addAndGet(waited);
+        long max;
+        while (waited > (max = maxWaitNanos.get())) {
+            maxWaitNanos.compareAndSet(max, waited);
+        }
+    }
+
+    private void cancel(Waiter w) {
+        synchronized (this) {
+            if (!w.granted) {
+                waiters.remove(w);
+                if (policy == Policy.BARGING && !waiters.isEmpty()
+                        && slots.get(slot) == FREE) {
+                    // the release may have woken us, wake the next one instead
+                    LockSupport.unpark(waiters.get(0).thread);
+                }
+                return;
+            }
+        }
+        // we got the lock while giving up, pass it on
+        release();
+    }
+
+    public synchronized void release() {
+        if (isBlocked()) {
+            return;
+        }
+        long now = TrainPhysics.nanoTime();
+        if (slots.get(slot) == TAKEN) {
+            heldNanos.addAndGet(now - takenAt);
+        }
+        if (waiters.isEmpty()) {
+            slots.set(slot, FREE);
+            return;
+        }
+        if (policy == Policy.BARGING) {
+            slots.set(slot, FREE);
+            LockSupport.unpark(waiters.get(0).thread);
+            return;
+        }
+        // hand over, the slot stays TAKEN
+        takenAt = now;
+        Waiter next = waiters.remove(nextWaiterIndex());
+        next.granted = true;
+        LockSupport.unpark(next.thread);
+    }
+
+    private int nextWaiterIndex() {
+        if (policy == Policy.FIFO) {
+            return 0;
+        }
+        long now = TrainPhysics.nanoTime();
+        int best = 0;
+        long bestPriority = waiters.get(0).priority(now);
+        for (int i = 1; i < waiters.size(); i++) {
+            long p = waiters.get(i).priority(now);
+            if (p > bestPriority) {
+                best = i;
+                bestPriority = p;
+            }
+        }
+        return best;
+    }
+
+    public boolean isTaken() {
+        return slots.get(slot) != FREE;
+    }
+
+    public synchronized void block() {
+        slots.set(slot, BLOCKED);
+        for (Waiter w : waiters) {
+            w.blocked = true;
+            LockSupport.unpark(w.thread);
+        }
+        waiters.clear();
+    }
+
+    public boolean isBlocked() {
+        return slots.get(slot) == BLOCKED;
+    }
+
+    public synchronized int getQueueLength() {
+        return waiters.size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the time all callers of acquire() have spent waiting
+     */
+    public long getTotalWaitNanos() {
+        return totalWaitNanos.get();
+    }
+
+    /**
+     * @return the time the lock has been taken, up to its last release
+     */
+    public long getHeldNanos() {
+        return heldNanos.get();
+    }
+
+    /**
+     * @return the share of the time since the lock was made that it has
+     *         been taken, 0 to 1
+     */
+    public double getOccupancy() {
+        long lifetime = TrainPhysics.nanoTime() - createdAt;
+        return lifetime <= 0 ? 0 : Math.min(1, (double) heldNanos.get() / lifetime);
+    }
+
+    public synchronized int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    /**
+     * @return the average queue length a waiter found, itself included
+     */
+    public synchronized double getMeanQueueLength() {
+        return queued == 0 ? 0 : (double) queueSum / queued;
+    }
+
+    public synchronized String statistics() {
+        long slow = slowAcquires.get();
+        return name + ": acquires = " + (fastAcquires.get() + slow)
+                + ", contended = " + slow
+                + ", failed tries = " + failedTries.get()
+                + ", avg wait = " + (slow == 0 ? 0 : totalWaitNanos.get() / slow / 1000000) + " ms"
+                + ", max wait = " + maxWaitNanos.get() / 1000000 + " ms"
+                + ", max queue = " + maxQueueLength
+                + ", occupied = " + Math.round(getOccupancy() * 100) + "%";
+    }
+
+    @Override
+    public String toString() {
+        return "OccupancyLock[" + name + ", " + policy
+                + (isBlocked() ? ", blocked]" : isTaken() ? ", taken]" : ", free]");
+    }
+
+    private static class Waiter {
+
+        final Thread thread;
+        final int priority;
+        final long since;
+        volatile boolean granted;
+        volatile boolean blocked;
+
+        Waiter(Thread thread, int priority, long since) {
+            this.thread = thread;
+            this.priority = priority;
+            this.since = since;
+        }
+
+        /**
+         * @return the priority aged by the time waited until now
+         */
+        long priority(long now) {
+            long aging = agingNanos;
+            return aging > 0 ? priority + (now - since) / aging : priority;
+        }
+    }
+}
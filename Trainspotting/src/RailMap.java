@@ -4,14 +4,21 @@ import TSim.TSimInterface;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Scanner;
 import java.util.Set;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Railmap contains the data of the rails, it knows where the sensors are etc.
+ *
+ * The map can be changed while trains are running with applyDiff(). A
+ * change never modifies a RailMap, it builds a new one (sharing everything
+ * that didn't change) and makes it the current one, so a train that takes a
+ * snapshot() sees one consistent map for as long as it uses it.
  */
 public class RailMap {
 
@@ -19,25 +26,182 @@ public class RailMap {
     private int[][] array; //>=1 if walkable, >=5 if part of swing
                            //have transformed dimensions!!! (2x+1)
     private Sensor[][] sensorArray;
+    private String[][][] railTypes; // the rails of each cell, as in the file
+    private byte[][][] switchTables; // of switches: the state by entry*4+exit
+    private final ConcurrentHashMap<Point, SwitchSetting> switchSettings;
+    private volatile boolean cacheSwitches = true;
     private ArrayList<Point> trainList;
+    private ArrayList<Point> stations; // the cells of the "station" lines
+    private volatile SensorTable sensorTable;
+    private volatile RailMap current = this;
 
     RailMap(File file) {
-        trainList = new ArrayList<Point>();
-        parse(file);
+        this(openFile(file));
     }
 
-    public Sensor getSensor(Point p) {
-        return sensorArray[p.x][p.y];
+    /**
+     * Parse a map from anything a Scanner can read, e.g. a String
+     */
+    RailMap(Scanner sc) {
+        trainList = new ArrayList<Point>();
+        stations = new ArrayList<Point>();
+        switchSettings = new ConcurrentHashMap<Point, SwitchSetting>();
+        parse(sc);
+        analyse();
     }
 
-    private void parse(File file) {
+    /**
+     * Copy of base that shares all arrays with it, columns that are going to
+     * be changed must be copied with copyColumn() first.
+     */
+    private RailMap(RailMap base) {
+        width = base.width;
+        height = base.height;
+        trainList = base.trainList;
+        stations = base.stations;
+        array = base.array.clone();
+        sensorArray = base.sensorArray.clone();
+        railTypes = base.railTypes.clone();
+        switchTables = base.switchTables.clone();
+        switchSettings = base.switchSettings;
+        cacheSwitches = base.cacheSwitches;
+        sensorTable = base.sensorTable;
+    }
+
+    private static Scanner openFile(File file) {
         Scanner sc = null;
         try {
             sc = new Scanner(file);
         } catch (FileNotFoundException ex) {
             System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ file not found: " + ex + " ¤¤¤¤¤¤¤¤¤¤¤¤¤");
         }
+        return sc;
+    }
+
+    /**
+     * Precompute what trains need to know at each sensor, spread over all
+     * cores since the sensors can be analysed independently.
+     */
+    private void analyse() {
+        long start = System.currentTimeMillis();
+        int threads = Runtime.getRuntime().availableProcessors();
+        sensorTable = SensorTable.build(this, threads);
+        switchTables = new byte[width][height][];
+        for (Point p : getSwitches()) {
+            switchTables[p.x][p.y] = buildSwitchTable(p);
+        }
+        System.err.println("Analysed " + sensorTable.size() + " sensors in "
+                + (System.currentTimeMillis() - start) + " ms using " + threads + " threads");
+    }
+
+    /**
+     * @return the newest version of this map, trains should take one when
+     *         they start handling a sensor and use it throughout
+     */
+    public RailMap snapshot() {
+        return current;
+    }
+
+    /**
+     * Change the map while trains are running. Only the sensors whose
+     * searches walked over a changed cell are searched again, the rest of
+     * the sensor table is reused. Sensors on unchanged cells keep their
+     * Sensor objects so pending actions on them still trigger.
+     *
+     * Must be called on the map the trains were started with. If the
+     * semaphores have been warmed up, the ones of new segments are created
+     * before the new map is published.
+     */
+    public synchronized void applyDiff(MapDiff diff) {
+        long start = System.currentTimeMillis();
+        RailMap base = current;
+        RailMap next = new RailMap(base);
+        Set<Integer> copied = new HashSet<Integer>();
+        Set<Point> changed = new HashSet<Point>();
+        for (MapDiff.Change c : diff.changes) {
+            int x = c.pos.x;
+            int y = c.pos.y;
+            if (x < 0 || y < 0 || x >= width || y >= height) {
+                System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ diff outside map: " + c.pos + " ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+                continue;
+            }
+            next.copyColumn(x, copied);
+            changed.add(c.pos);
+            if (c.kind == MapDiff.ADD_RAIL || c.kind == MapDiff.REMOVE_RAIL) {
+                next.removeRails(x, y);
+            }
+            if (c.kind == MapDiff.ADD_RAIL) {
+                for (String rail : c.rails) {
+                    next.addRail(x, y, rail, 1);
+                }
+                next.railTypes[x][y] = c.rails;
+            }
+            boolean keepSensor = c.kind == MapDiff.ADD_SENSOR
+                    || (c.kind == MapDiff.ADD_RAIL && c.sensor);
+            if (!keepSensor) {
+                next.sensorArray[x][y] = null;
+            } else if (next.sensorArray[x][y] == null) {
+                next.sensorArray[x][y] = new Sensor(new Point(x, y), this);
+            }
+        }
+        next.updateSwitchTables(changed);
+        int threads = Runtime.getRuntime().availableProcessors();
+        next.sensorTable = base.sensorTable.update(next, changed, threads);
+        if (GlobalSemaphores.isFrozen()) {
+            // before the trains can see the new segments
+            GlobalSemaphores.warmUp(next);
+        }
+        current = next;
+        System.err.println("Applied " + diff.changes.size() + " changes, searched "
+                + next.sensorTable.getRecomputed() + " of " + next.sensorTable.size()
+                + " sensors again in " + (System.currentTimeMillis() - start) + " ms");
+    }
 
+    /**
+     * Build the switch tables of the changed cells and their neighbours
+     * again, a change next to a switch can turn it into something else
+     */
+    private void updateSwitchTables(Set<Point> changed) {
+        Set<Integer> copied = new HashSet<Integer>();
+        for (Point c : changed) {
+            switchSettings.remove(c);
+            for (int dir = -1; dir < 4; dir++) {
+                Point p = dir < 0 ? c : Point.createNewAndMove(c, dir);
+                if (p.x < 0 || p.y < 0 || p.x >= width || p.y >= height) {
+                    continue;
+                }
+                if (copied.add(p.x)) {
+                    switchTables[p.x] = switchTables[p.x].clone();
+                }
+                switchTables[p.x][p.y] = hasRail(p.x, p.y) && isSwitch(p) ? buildSwitchTable(p) : null;
+            }
+        }
+    }
+
+    /**
+     * Give this map its own copy of everything in column x
+     */
+    private void copyColumn(int x, Set<Integer> copied) {
+        if (!copied.add(x)) {
+            return;
+        }
+        sensorArray[x] = sensorArray[x].clone();
+        railTypes[x] = railTypes[x].clone();
+        // the rail cell and the connections on both sides of it, the
+        // connections are shared with the neighbouring columns
+        for (int dx = -1; dx <= 1; dx++) {
+            int detailedX = transformToDetailed(x) + dx;
+            if (dx == 0 || (!copied.contains(x + dx))) {
+                array[detailedX] = array[detailedX].clone();
+            }
+        }
+    }
+
+    public Sensor getSensor(Point p) {
+        return sensorArray[p.x][p.y];
+    }
+
+    private void parse(Scanner sc) {
         if (!sc.nextLine().trim().equals("TrainLineFile 2")) {
             System.err.println("not train file!!!!!!");
         }
@@ -47,6 +211,7 @@ public class RailMap {
         height = sc.nextInt();
         array = new int[transformToDetailed(width)][transformToDetailed(height)];
         sensorArray = new Sensor[width][height];
+        railTypes = new String[width][height][];
         sc.nextLine(); //remove eempty dimensions-line
 
         while (sc.hasNext()) {
@@ -59,6 +224,7 @@ public class RailMap {
             String[] sline = line.split(" ");
 
             if (sline[sline.length - 1].equals("station")) {
+                stations.add(new Point(Integer.parseInt(sline[1]), Integer.parseInt(sline[2])));
                 continue;
             }
             int x = Integer.parseInt(sline[1]);
@@ -67,8 +233,10 @@ public class RailMap {
                 boolean isSensor = sline[sline.length - 1].equals("Sensor");
 
                 int numRails = Integer.parseInt(sline[3]);
+                railTypes[x][y] = new String[numRails];
                 for (int i = 0; i < numRails; i++) {
-                    addRail(x, y, sline[4 + i]);
+                    addRail(x, y, sline[4 + i], 1);
+                    railTypes[x][y][i] = sline[4 + i];
                 }
 
                 sensorArray[x][y] =
@@ -83,6 +251,13 @@ public class RailMap {
         return height;
     }
 
+    /**
+     * @return the rails of the cell as named in the map file, null if none
+     */
+    String[] getRailTypes(Point p) {
+        return railTypes[p.x][p.y];
+    }
+
     public Sensor[][] getSensorArray() {
         return sensorArray;
     }
@@ -91,6 +266,13 @@ public class RailMap {
         return width;
     }
 
+    /**
+     * @return the stations of the map file, in the order they are listed
+     */
+    public List<Point> getStations() {
+        return Collections.unmodifiableList(stations);
+    }
+
     public int getNumTrains() {
         return trainList.size();
     }
@@ -99,6 +281,20 @@ public class RailMap {
         return trainList.get(id - 1);
     }
 
+    /**
+     * Print the map with one character per cell to stderr, the painter
+     * decides the cells with rails, the others are blank
+     */
+    public void printAsciiMap(CellPainter painter) {
+        for (int y = 0; y < height; y++) {
+            StringBuilder line = new StringBuilder();
+            for (int x = 0; x < width; x++) {
+                line.append(railTypes[x][y] == null ? ' ' : painter.paint(new Point(x, y)));
+            }
+            System.err.println(line.toString().replaceAll("\\s+$", ""));
+        }
+    }
+
     public void printAsciiMap() {
         System.err.println("");
         for (int y = 0; y < array[0].length; y++) {
@@ -132,6 +328,70 @@ public class RailMap {
         return getNumAdjacentDirections(p) == 1;
     }
 
+    private boolean hasRail(int x, int y) {
+        return array[transformToDetailed(x)][transformToDetailed(y)] > 0;
+    }
+
+    /**
+     * @return all crossings of the map
+     */
+    public ArrayList<Point> getCrossings() {
+        ArrayList<Point> ret = new ArrayList<Point>();
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                if (hasRail(x, y) && isCrossing(new Point(x, y))) {
+                    ret.add(new Point(x, y));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return all switches of the map
+     */
+    public ArrayList<Point> getSwitches() {
+        ArrayList<Point> ret = new ArrayList<Point>();
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                if (hasRail(x, y) && isSwitch(new Point(x, y))) {
+                    ret.add(new Point(x, y));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return all turn-around points (dead ends) of the map
+     */
+    public ArrayList<Point> getEnds() {
+        ArrayList<Point> ret = new ArrayList<Point>();
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                if (hasRail(x, y) && isEnd(new Point(x, y))) {
+                    ret.add(new Point(x, y));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return all sensors of the map
+     */
+    public ArrayList<Point> getSensors() {
+        ArrayList<Point> ret = new ArrayList<Point>();
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                if (sensorArray[x][y] != null) {
+                    ret.add(new Point(x, y));
+                }
+            }
+        }
+        return ret;
+    }
+
     private int getNumAdjacentDirections(Point p) {
         int numAdjacent = 0;
         for (int dir = 0; dir < 4; dir++) {
@@ -153,8 +413,40 @@ public class RailMap {
         return true;
     }
 
+    /**
+     * Search for the next crossing, answered from the sensor table when
+     * searching from a sensor.
+     */
     public SearchResult getNextCrossing(Point from, int dir0) {
-        return searchForPredicate(from, dir0, new PointCond() {
+        SensorTable table = sensorTable;
+        if (table != null && dir0 >= 0 && table.covers(from)) {
+            return table.lookup(SensorTable.CROSSING, from, dir0);
+        }
+        return findNextCrossing(from, dir0);
+    }
+
+    public SearchResult getNextSwitch(Point from, int dir0) {
+        SensorTable table = sensorTable;
+        if (table != null && dir0 >= 0 && table.covers(from)) {
+            return table.lookup(SensorTable.SWITCH, from, dir0);
+        }
+        return findNextSwitch(from, dir0);
+    }
+
+    SearchResult getNextSensor(final Point from, int dir0) {
+        SensorTable table = sensorTable;
+        if (table != null && dir0 >= 0 && table.covers(from)) {
+            return table.lookup(SensorTable.SENSOR, from, dir0);
+        }
+        return findNextSensor(from, dir0);
+    }
+
+    SearchResult findNextCrossing(Point from, int dir0) {
+        return findNextCrossing(from, dir0, null);
+    }
+
+    SearchResult findNextCrossing(Point from, int dir0, SensorTable.Footprint footprint) {
+        return searchForPredicate(from, dir0, footprint, new PointCond() {
 
             public boolean ok(Point p) {
                 return isCrossing(p);
@@ -162,8 +454,12 @@ public class RailMap {
         });
     }
 
-    public SearchResult getNextSwitch(Point from, int dir0) {
-        return searchForPredicate(from, dir0, new PointCond() {
+    SearchResult findNextSwitch(Point from, int dir0) {
+        return findNextSwitch(from, dir0, null);
+    }
+
+    SearchResult findNextSwitch(Point from, int dir0, SensorTable.Footprint footprint) {
+        return searchForPredicate(from, dir0, footprint, new PointCond() {
 
             public boolean ok(Point p) {
                 return isSwitch(p);
@@ -172,7 +468,11 @@ public class RailMap {
     }
 
     public SearchResult getNextSwitchOrEnd(Point from, int dir0) {
-        return searchForPredicate(from, dir0, new PointCond() {
+        return getNextSwitchOrEnd(from, dir0, null);
+    }
+
+    SearchResult getNextSwitchOrEnd(Point from, int dir0, SensorTable.Footprint footprint) {
+        return searchForPredicate(from, dir0, footprint, new PointCond() {
 
             public boolean ok(Point p) {
                 return isSwitch(p) || isEnd(p);
@@ -180,8 +480,21 @@ public class RailMap {
         });
     }
 
-    SearchResult getNextSensor(final Point from, int dir0) {
-        return searchForPredicate(from, dir0, new PointCond() {
+    SearchResult findNextEnd(final Point from, int dir0) {
+        return searchForPredicate(from, dir0, null, new PointCond() {
+
+            public boolean ok(Point p) {
+                return !from.equals(p) && isEnd(p);
+            }
+        });
+    }
+
+    SearchResult findNextSensor(final Point from, int dir0) {
+        return findNextSensor(from, dir0, null);
+    }
+
+    SearchResult findNextSensor(final Point from, int dir0, SensorTable.Footprint footprint) {
+        return searchForPredicate(from, dir0, footprint, new PointCond() {
 
             public boolean ok(Point p) {
                 return !from.equals(p) && getSensor(p) != null;
@@ -189,14 +502,28 @@ public class RailMap {
         });
     }
 
-    private SearchResult searchForPredicate(Point from, int dir, PointCond pc) {
+    /**
+     * Walk from given point until pc is fulfilled
+     *
+     * @param footprint if not null, gets every cell walked over
+     */
+    private SearchResult searchForPredicate(Point from, int dir,
+            SensorTable.Footprint footprint, PointCond pc) {
         Point now = new Point(from.x, from.y);
         int dist = 0;
-        while (!pc.ok(now)) {
+        // a loop without what we look for would otherwise never end
+        int maxDist = 4 * width * height;
+        while (true) {
+            if (footprint != null) {
+                footprint.add(now);
+            }
+            if (pc.ok(now)) {
+                break;
+            }
             dir = getPrefferedDirection(now, dir);
             //System.err.println(now);
             //System.err.println(dir);
-            if (dir == -1) {
+            if (dir == -1 || dist > maxDist) {
                 return null;
             }
             now.moveInDirection(dir);
@@ -205,7 +532,7 @@ public class RailMap {
         return new SearchResult(now, dir, dist);
     }
 
-    private int getPrefferedDirection(Point p, int dir) {
+    int getPrefferedDirection(Point p, int dir) {
         int x = transformToDetailed(p.x);
         int y = transformToDetailed(p.y);
         int[] preferredDirs = {dir, (dir + 1) % 4, (dir - 1 + 4) % 4};
@@ -245,28 +572,60 @@ public class RailMap {
         return validDetailedCoordinate(x, y) && array[x][y] > 0;
     }
 
-    Semaphore getSegmentSemaphor(Point position) {
-        if (getNumAdjacentDirections(position) > 2) {
+    TrackLock getSegmentSemaphor(Point position) {
+        Point key = getSegmentKey(position);
+        if (key == null) {
             System.err.println("position = " + position);
             throw new AssertionError();
         }
+        return GlobalSemaphores.findOrCreate(key);
+    }
+
+    /**
+     * The key the semaphore of the segment position lies on is stored under
+     *
+     * @return null if position isn't on a segment
+     */
+    Point getSegmentKey(Point position) {
+        SensorTable table = sensorTable;
+        Point[] ends = table != null && table.covers(position)
+                ? table.segment(position) : findSegment(position);
+        if (ends == null) {
+            return null;
+        }
+        return GlobalSemaphores.segmentKey(ends[0], ends[1]);
+    }
+
+    /**
+     * Find the (prehacked) endpoints of the segment position lies on.
+     *
+     * @return null if position isn't on a segment
+     */
+    Point[] findSegment(Point position) {
+        return findSegment(position, null);
+    }
+
+    Point[] findSegment(Point position, SensorTable.Footprint footprint) {
+        if (getNumAdjacentDirections(position) > 2) {
+            return null;
+        }
         // we can give senseless directions because it will prioritize different
         // directions when searching, and we assume this is only called
         // on straight
-        SearchResult s1 = getNextSwitchOrEnd(position, 0);
-        SearchResult s2 = getNextSwitchOrEnd(position, 2);
+        SearchResult s1 = getNextSwitchOrEnd(position, 0, footprint);
+        SearchResult s2 = getNextSwitchOrEnd(position, 2, footprint);
 //        System.err.println("s1 = " + s1);
 //        System.err.println("s2 = " + s2);
-        Point p1 = s1.pos;
-        Point p2 = s2.pos;
+        if (s1 == null || s2 == null) {
+            return null;
+        }
 
         // This is so we can see distance between semaphores that start and
         // stop at exact same points, yet are different tracks
         // (like orig bana in middle)
-        p1.x += s1.direction * 1000;
-        p2.x += s2.direction * 1000;
-
-        return GlobalSemaphores.findOrCreate2(p1, p2);
+        Point p1 = new Point(s1.pos.x + s1.direction * 1000, s1.pos.y);
+        Point p2 = new Point(s2.pos.x + s2.direction * 1000, s2.pos.y);
+        return new Point[]{p1, p2};
     }
 
     /**
@@ -297,22 +656,101 @@ public class RailMap {
         return -1;
     }
 
+    /**
+     * Set the switch unless it was last set the same way by this controller.
+     * A switch that failed to be set is sent again the next time.
+     */
     void switchSoGivenDirWorks(Point switchPos, int dirTrainComesFrom, int dirTrainWantsToGo) {
 //        System.err.println(switchPos);
 //        System.err.println(dirTrainComesFrom);
 //        System.err.println(dirTrainWantsToGo);
-        TSimInterface iface = TSimInterface.getInstance();
+        int state = switchStateFor(switchPos, dirTrainComesFrom, dirTrainWantsToGo);
+        if (!cacheSwitches) {
+            setSwitch(switchPos, state);
+            return;
+        }
+        SwitchSetting setting = switchSettings.get(switchPos);
+        if (setting == null) {
+            switchSettings.putIfAbsent(switchPos, new SwitchSetting());
+            setting = switchSettings.get(switchPos);
+        }
+        synchronized (setting) {
+            if (setting.state == state) {
+                Metrics.increment("switch commands skipped");
+                return;
+            }
+            setting.state = setSwitch(switchPos, state) ? state : SwitchSetting.UNKNOWN;
+        }
+    }
+
+    private boolean setSwitch(Point switchPos, int state) {
+        Metrics.increment("switch commands");
+        try {
+            TSimInterface.getInstance().setSwitch(switchPos.x, switchPos.y, state);
+            return true;
+        } catch (CommandException ex) {
+            System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ switch failade ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+            return false;
+        }
+    }
+
+    /**
+     * Always send switch commands, for when something else than this
+     * controller may move the switches too
+     */
+    void disableSwitchCache() {
+        cacheSwitches = false;
+    }
+
+    /**
+     * How tsim's switch must be set for a train entering it with one
+     * direction to leave it with another
+     *
+     * @return TSimInterface.SWITCH_LEFT or TSimInterface.SWITCH_RIGHT
+     */
+    int switchStateFor(Point switchPos, int dirTrainComesFrom, int dirTrainWantsToGo) {
+        byte[] table = switchTables[switchPos.x][switchPos.y];
+        if (table != null) {
+            return table[dirTrainComesFrom * 4 + dirTrainWantsToGo];
+        }
+        return computeSwitchState(switchPos, dirTrainComesFrom, dirTrainWantsToGo);
+    }
+
+    private byte[] buildSwitchTable(Point switchPos) {
+        byte[] table = new byte[16];
+        for (int in = 0; in < 4; in++) {
+            for (int out = 0; out < 4; out++) {
+                table[in * 4 + out] = (byte) computeSwitchState(switchPos, in, out);
+            }
+        }
+        return table;
+    }
+
+    private int computeSwitchState(Point switchPos, int dirTrainComesFrom, int dirTrainWantsToGo) {
         int x = transformToDetailed(switchPos.x);
         int y = transformToDetailed(switchPos.y);
         boolean b = dirTrainComesFrom != dirTrainWantsToGo;
         b ^= array[x + 1][y] >= 5;
         b ^= array[x][y + 1] >= 5;
         b ^= array[x][y - 1] > 0 && array[x][y + 1] > 0;
-        try {
-            iface.setSwitch(switchPos.x, switchPos.y, b ? TSimInterface.SWITCH_LEFT : TSimInterface.SWITCH_RIGHT);
-        } catch (CommandException ex) {
-            System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ switch failade ¤¤¤¤¤¤¤¤¤¤¤¤¤");
-        }
+        return b ? TSimInterface.SWITCH_LEFT : TSimInterface.SWITCH_RIGHT;
+    }
+
+    /**
+     * The state this controller last set a switch to
+     */
+    private static class SwitchSetting {
+
+        static final int UNKNOWN = -1;
+        int state = UNKNOWN;
+    }
+
+    /**
+     * What to draw in a cell with rails, see printAsciiMap()
+     */
+    public interface CellPainter {
+
+        public char paint(Point p);
     }
 
     private interface PointCond {
@@ -393,23 +831,35 @@ public class RailMap {
         return new Point(transformToDetailed(p.x), transformToDetailed(p.y));
     }
 
-    private void addRail(int x, int y, String rail) {
+    /**
+     * Add (sign = 1) or remove (sign = -1) a rail
+     */
+    private void addRail(int x, int y, String rail, int sign) {
         x = transformToDetailed(x);
         y = transformToDetailed(y);
 
-        array[x][y] = 1;
+        array[x][y] = sign > 0 ? 1 : 0;
         if (rail.equals("HorizontalRail")) {
-            array[x + 1][y]++;
-            array[x - 1][y]++;
+            array[x + 1][y] += sign;
+            array[x - 1][y] += sign;
         } else if (rail.equals("VerticalRail")) {
-            array[x][y + 1]++;
-            array[x][y - 1]++;
+            array[x][y + 1] += sign;
+            array[x][y - 1] += sign;
         } else {
             for (int dir = 0; dir < 4; dir++) {
                 if (rail.indexOf(DirectionArrays.dirNames[dir]) >= 0) {
-                    array[x + DirectionArrays.xDirs[dir]][y + DirectionArrays.yDirs[dir]] += 5;
+                    array[x + DirectionArrays.xDirs[dir]][y + DirectionArrays.yDirs[dir]] += 5 * sign;
                 }
             }
         }
     }
+
+    private void removeRails(int x, int y) {
+        if (railTypes[x][y] != null) {
+            for (String rail : railTypes[x][y]) {
+                addRail(x, y, rail, -1);
+            }
+            railTypes[x][y] = null;
+        }
+    }
 }
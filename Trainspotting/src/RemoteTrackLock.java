@@ -0,0 +1,185 @@
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * A semaphore that lives in the ShardCoordinator, used by a controller for
+ * the semaphores it shares with other regions.
+ *
+ * Every thread gets its own connection to the coordinator since acquire()
+ * blocks until the coordinator answers. The protocol is one line per request:
+ *
+ *   ACQUIRE x y priority   answered with OK once taken
+ *   TRY x y                answered with OK or NO
+ *   RELEASE x y            answered with OK
+ *   BLOCK x y              answered with OK
+ *   BLOCKED x y            answered with YES or NO
+ *
+ * ACQUIRE is answered with BLOCKED instead if the track is blocked.
+ *
+ * The coordinator can't take back an ACQUIRE, so a thread interrupted while
+ * waiting for the answer leaves its connection to a daemon thread that
+ * waits for it and releases the semaphore again if it was taken.
+ */
+public class RemoteTrackLock implements TrackLock {
+
+    private static final int POLL_MILLIS = 100;
+    private static int port;
+    private static final ThreadLocal<Connection> connections = new ThreadLocal<Connection>();
+    private final Point key;
+
+    public RemoteTrackLock(Point key) {
+        this.key = key;
+    }
+
+    /**
+     * Set the loopback port of the coordinator, must be called before
+     * any remote lock is used
+     */
+    public static void setPort(int coordinatorPort) {
+        port = coordinatorPort;
+    }
+
+    public Point getKey() {
+        return key;
+    }
+
+    public boolean tryAcquire() {
+        return request("TRY " + key.x + " " + key.y).equals("OK");
+    }
+
+    public void acquire(int priority) throws InterruptedException {
+        String answer;
+        try {
+            Connection c = connection();
+            c.out.println("ACQUIRE " + key.x + " " + key.y + " " + priority);
+            while (true) {
+                try {
+                    answer = c.readAnswer();
+                    break;
+                } catch (SocketTimeoutException ex) {
+                    if (Thread.interrupted()) {
+                        connections.remove();
+                        abandon(c);
+                        throw new InterruptedException();
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("lost the coordinator: " + ex.getMessage(), ex);
+        }
+        if (answer.equals("BLOCKED")) {
+            throw new TrackBlockedException(toString());
+        }
+    }
+
+    public void release() {
+        request("RELEASE " + key.x + " " + key.y);
+    }
+
+    public void block() {
+        request("BLOCK " + key.x + " " + key.y);
+    }
+
+    public boolean isBlocked() {
+        return request("BLOCKED " + key.x + " " + key.y).equals("YES");
+    }
+
+    public String statistics() {
+        return key + " remote, see the coordinator";
+    }
+
+    @Override
+    public String toString() {
+        return "remote " + key;
+    }
+
+    private String request(String line) {
+        try {
+            Connection c = connection();
+            c.out.println(line);
+            while (true) {
+                try {
+                    return c.readAnswer();
+                } catch (SocketTimeoutException ex) {
+                    // only ACQUIRE waits, the rest is answered right away
+                }
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("lost the coordinator: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static Connection connection() throws IOException {
+        Connection c = connections.get();
+        if (c == null) {
+            c = new Connection();
+            connections.set(c);
+        }
+        return c;
+    }
+
+    /**
+     * Wait for the answer to an ACQUIRE nobody waits for any more, and give
+     * the semaphore back if it was taken
+     */
+    private void abandon(final Connection c) {
+        Thread t = new Thread("abandoned " + this) {
+
+            @Override
+            public void run() {
+                try {
+                    c.socket.setSoTimeout(0);
+                    if (c.readAnswer().equals("OK")) {
+                        c.out.println("RELEASE " + key.x + " " + key.y);
+                        c.readAnswer();
+                    }
+                } catch (IOException ex) {
+                    System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ lost the coordinator releasing "
+                            + key + ": " + ex.getMessage() + " ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+                } finally {
+                    c.close();
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static final class Connection {
+
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+
+        Connection() throws IOException {
+            socket = new Socket(InetAddress.getByName(null), port);
+            socket.setTcpNoDelay(true);
+            // so that a waiting acquire() can see an interrupt
+            socket.setSoTimeout(POLL_MILLIS);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("LOCKS");
+        }
+
+        String readAnswer() throws IOException {
+            String answer = in.readLine();
+            if (answer == null) {
+                throw new IOException("coordinator closed the connection");
+            }
+            return answer;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+
+import TSim.ReplayTransport;
+import TSim.TSimInformation;
+import TSim.TSimTransport;
+import TSim.UnparsableInputException;
+import java.io.IOException;
+
+/**
+ * Plays a recording made with tsim.record (see RecordingTransport) back to
+ * the controller in virtual time, for Lab1 --replay. Before every message
+ * the VirtualClock is moved on to when it was recorded and the controller
+ * is left to do all it can with it (see DeterministicScheduler.awaitIdle()),
+ * so a train that waits on the clock wakes up where it did in the recorded
+ * run. With a DeterministicScheduler installed the replay then goes the
+ * same way every time, and the commands that differ from the recorded ones
+ * show where it parts from the original run.
+ *
+ * The program exits when the recording has been played to the end, with
+ * status 1 if any command differed.
+ */
+public class ReplayPacer implements TSimTransport {
+
+    private final ReplayTransport replay;
+    private final VirtualClock clock;
+
+    public ReplayPacer(String fileName, VirtualClock clock) throws IOException {
+        this.replay = new ReplayTransport(fileName, false);
+        this.clock = clock;
+    }
+
+    public TSimInformation read() throws UnparsableInputException {
+        try {
+            DeterministicScheduler.awaitIdle(null);
+            long time = replay.nextTime();
+            if (time < 0) {
+                finished();
+                return null;
+            }
+            if (clock.advanceTo(time / 1000.0)) {
+                DeterministicScheduler.awaitIdle(null);
+            }
+        } catch (InterruptedException ex) {
+            return null;
+        }
+        return replay.read();
+    }
+
+    public void sendSetSpeed(int trainId, int speed) {
+        replay.sendSetSpeed(trainId, speed);
+    }
+
+    public void sendSetSwitch(int xPos, int yPos, int switchDir) {
+        replay.sendSetSwitch(xPos, yPos, switchDir);
+    }
+
+    private void finished() {
+        DeterministicScheduler s = DeterministicScheduler.getCurrent();
+        System.err.println("replay: " + replay.getMessagesRead() + " messages in "
+                + TrainPhysics.now() + " s, " + (s == null ? 0 : s.getTurns()) + " turns, "
+                + replay.getMismatches() + " commands differed");
+        System.exit(replay.getMismatches() == 0 ? 0 : 1);
+    }
+}
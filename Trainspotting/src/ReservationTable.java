@@ -0,0 +1,103 @@
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Time windows booked on pieces of track (crossings, semaphores, anything
+ * that can be a key) by trains. Windows of one train never conflict with
+ * each other, windows of different trains on the same key should not
+ * overlap, which is up to the caller to check with firstFree() or isFree().
+ * Windows that have ended are dropped as they are come across.
+ *
+ * Not thread safe, the users lock around it.
+ */
+public class ReservationTable {
+
+    private final Map<Object, List<Window>> windows = new HashMap<Object, List<Window>>();
+
+    /**
+     * @return the first time at or after earliest that a window of the
+     *         given length fits in between the other trains' windows
+     */
+    public double firstFree(Object key, double earliest, double length, int trainId) {
+        double start = earliest;
+        boolean moved = true;
+        while (moved) {
+            moved = false;
+            for (Window w : windowsAt(key)) {
+                if (w.trainId != trainId && start < w.end && w.start < start + length) {
+                    start = w.end;
+                    moved = true;
+                }
+            }
+        }
+        return start;
+    }
+
+    /**
+     * @return true if no other train has a window overlapping from - to
+     */
+    public boolean isFree(Object key, double from, double to, int trainId) {
+        for (Window w : windowsAt(key)) {
+            if (w.trainId != trainId && from < w.end && w.start < to) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void reserve(Object key, double from, double to, int trainId) {
+        windowsAt(key).add(new Window(trainId, from, to));
+    }
+
+    /**
+     * Drop the train's windows on key
+     */
+    public void release(Object key, int trainId) {
+        for (Iterator<Window> it = windowsAt(key).iterator(); it.hasNext();) {
+            if (it.next().trainId == trainId) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop all the train's windows
+     */
+    public void releaseAll(int trainId) {
+        for (Object key : new ArrayList<Object>(windows.keySet())) {
+            release(key, trainId);
+        }
+    }
+
+    private List<Window> windowsAt(Object key) {
+        List<Window> booked = windows.get(key);
+        if (booked == null) {
+            booked = new ArrayList<Window>();
+            windows.put(key, booked);
+        }
+        double now = TrainPhysics.now();
+        for (Iterator<Window> it = booked.iterator(); it.hasNext();) {
+            if (it.next().end < now) {
+                it.remove();
+            }
+        }
+        return booked;
+    }
+
+    private static class Window {
+
+        final int trainId;
+        final double start;
+        final double end;
+
+        Window(int trainId, double start, double end) {
+            this.trainId = trainId;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
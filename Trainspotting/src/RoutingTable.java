@@ -0,0 +1,374 @@
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shortest ways over a TrackGraph, worked out once. The graph is copied
+ * into flat arrays (the edges of node i are firstEdge[i] until
+ * firstEdge[i + 1]).
+ *
+ * The distance from every node to every station is always there, a
+ * stations * n array filled by one Dijkstra per station over the reversed
+ * edges. The shortest ways between every pair of nodes are only worked out
+ * if asked for, since they take two n * n arrays (5 bytes a pair, 32 MB for
+ * 2560 nodes): the distance, and which of its edges the node at the start
+ * takes first. Following the first edges gives the whole way.
+ *
+ * Distances are in cells, a turnaround counting as the given number of
+ * cells. A node can get to a station if it can get to a node that turns
+ * around at the end of a line serving it (see Timetable.serves()).
+ *
+ * Never changes once made, so any thread may use it.
+ */
+public class RoutingTable {
+
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+    private final int n;
+    private final TrackGraph.Node[] nodes;
+    private final Map<TrackGraph.Node, Integer> index = new HashMap<TrackGraph.Node, Integer>();
+    private final int[] firstEdge;
+    private final int[] edgeTo;
+    private final int[] edgeCost;
+    private final TrackGraph.Edge[] edges;
+    private final int[] dist; // null unless all pairs were asked for
+    private final byte[] firstHop;
+    private final Map<Point, Integer> stationIndex = new HashMap<Point, Integer>();
+    private final int[] toStation; // station * n + node
+
+    /**
+     * @param allPairs also work out the ways between every pair of nodes,
+     *                 for distance() and route()
+     */
+    public RoutingTable(RailMap map, TrackGraph graph, int turnAroundCost, boolean allPairs) {
+        List<TrackGraph.Node> all = new ArrayList<TrackGraph.Node>();
+        for (TrackGraph.Node[] byDir : graph.getNodes()) {
+            for (TrackGraph.Node node : byDir) {
+                if (node != null) {
+                    index.put(node, all.size());
+                    all.add(node);
+                }
+            }
+        }
+        n = all.size();
+        nodes = all.toArray(new TrackGraph.Node[n]);
+        firstEdge = new int[n + 1];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            firstEdge[i] = m;
+            m += nodes[i].edges.size();
+        }
+        firstEdge[n] = m;
+        edgeTo = new int[m];
+        edgeCost = new int[m];
+        edges = new TrackGraph.Edge[m];
+        for (int i = 0; i < n; i++) {
+            int k = firstEdge[i];
+            for (TrackGraph.Edge e : nodes[i].edges) {
+                edgeTo[k] = index.get(e.to);
+                edgeCost[k] = e.turnAround ? turnAroundCost : e.distance;
+                edges[k++] = e;
+            }
+        }
+        IntHeap heap = new IntHeap(n);
+        List<Point> stations = map.getStations();
+        toStation = new int[checkedSize(stations.size(), n, "stations")];
+        Arrays.fill(toStation, UNREACHABLE);
+        int[][] reversed = reverse();
+        for (int s = 0; s < stations.size(); s++) {
+            stationIndex.put(stations.get(s), s);
+            for (int i = 0; i < n; i++) {
+                if (nodes[i].end != null && Timetable.serves(nodes[i].end, stations.get(s))) {
+                    toStation[s * n + i] = 0;
+                    heap.push(i, 0);
+                }
+            }
+            dijkstraToStation(s * n, reversed, heap);
+        }
+        if (allPairs) {
+            dist = new int[checkedSize(n, n, "nodes")];
+            firstHop = new byte[dist.length];
+            Arrays.fill(dist, UNREACHABLE);
+            Arrays.fill(firstHop, (byte) -1);
+            for (int s = 0; s < n; s++) {
+                dijkstra(s, heap);
+            }
+        } else {
+            dist = null;
+            firstHop = null;
+        }
+    }
+
+    /**
+     * With the ways between every pair of nodes
+     */
+    public RoutingTable(RailMap map, int turnAroundCost) {
+        this(map, new TrackGraph(map), turnAroundCost, true);
+    }
+
+    /**
+     * @return rows * n, if that fits in an array
+     */
+    private static int checkedSize(int rows, int n, String what) {
+        long size = (long) rows * n;
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too many " + what + " for a routing table: "
+                    + rows + " * " + n + " entries");
+        }
+        return (int) size;
+    }
+
+    /**
+     * @return the edges turned around: {first edge into each node (n + 1
+     *         of them), node it comes from, cost}
+     */
+    private int[][] reverse() {
+        int m = edgeTo.length;
+        int[] first = new int[n + 1];
+        for (int k = 0; k < m; k++) {
+            first[edgeTo[k] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            first[i + 1] += first[i];
+        }
+        int[] from = new int[m];
+        int[] cost = new int[m];
+        int[] next = Arrays.copyOf(first, n);
+        for (int u = 0; u < n; u++) {
+            for (int k = firstEdge[u]; k < firstEdge[u + 1]; k++) {
+                int at = next[edgeTo[k]]++;
+                from[at] = u;
+                cost[at] = edgeCost[k];
+            }
+        }
+        return new int[][]{first, from, cost};
+    }
+
+    /**
+     * Fill in one row of toStation from the nodes already on the heap
+     */
+    private void dijkstraToStation(int row, int[][] reversed, IntHeap heap) {
+        int[] first = reversed[0], from = reversed[1], cost = reversed[2];
+        while (!heap.isEmpty()) {
+            int u = heap.pop();
+            int du = toStation[row + u];
+            for (int k = first[u]; k < first[u + 1]; k++) {
+                int v = from[k];
+                int dv = du + cost[k];
+                if (dv < toStation[row + v]) {
+                    toStation[row + v] = dv;
+                    heap.push(v, dv);
+                }
+            }
+        }
+    }
+
+    private void dijkstra(int s, IntHeap heap) {
+        int row = s * n;
+        dist[row + s] = 0;
+        heap.push(s, 0);
+        while (!heap.isEmpty()) {
+            int u = heap.pop();
+            int du = dist[row + u];
+            for (int k = firstEdge[u]; k < firstEdge[u + 1]; k++) {
+                int v = edgeTo[k];
+                int dv = du + edgeCost[k];
+                if (dv < dist[row + v]) {
+                    dist[row + v] = dv;
+                    firstHop[row + v] = u == s ? (byte) (k - firstEdge[s]) : firstHop[row + u];
+                    heap.push(v, dv);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of nodes
+     */
+    public int size() {
+        return n;
+    }
+
+    public boolean hasAllPairs() {
+        return dist != null;
+    }
+
+    /**
+     * @return bytes taken by the tables themselves, the graph and index
+     *         not counted
+     */
+    public long tableBytes() {
+        long bytes = (long) toStation.length * 4;
+        return dist == null ? bytes : bytes + (long) dist.length * 4 + firstHop.length;
+    }
+
+    /**
+     * @return cells from one node to the other, UNREACHABLE if there is no
+     *         way or either isn't in the table
+     * @throws IllegalStateException if the table was made without all
+     *                               pairs
+     */
+    public int distance(TrackGraph.Node from, TrackGraph.Node to) {
+        if (dist == null) {
+            throw new IllegalStateException("routing table without all pairs");
+        }
+        Integer f = index.get(from);
+        Integer t = index.get(to);
+        return f == null || t == null ? UNREACHABLE : dist[f * n + t];
+    }
+
+    /**
+     * @return cells from the node to the nearest end of a line serving the
+     *         station, UNREACHABLE if there is none
+     */
+    public int distanceToStation(TrackGraph.Node from, Point station) {
+        Integer f = index.get(from);
+        Integer s = stationIndex.get(station);
+        return f == null || s == null ? UNREACHABLE : toStation[s * n + f];
+    }
+
+    /**
+     * @return the edges of the shortest way, empty if from is to, null if
+     *         there is no way
+     * @throws IllegalStateException if the table was made without all
+     *                               pairs
+     */
+    public List<TrackGraph.Edge> route(TrackGraph.Node from, TrackGraph.Node to) {
+        if (distance(from, to) == UNREACHABLE) {
+            return null;
+        }
+        int t = index.get(to);
+        List<TrackGraph.Edge> way = new ArrayList<TrackGraph.Edge>();
+        for (int u = index.get(from); u != t;) {
+            int k = firstEdge[u] + firstHop[u * n + t];
+            way.add(edges[k]);
+            u = edgeTo[k];
+        }
+        return way;
+    }
+
+    /**
+     * Up to k ways to the station that leave the node by different edges,
+     * each the shortest one starting with its edge, shortest first. A
+     * train can spread over them when the best one is busy (see
+     * StationRouter).
+     */
+    public List<Route> alternatives(TrackGraph.Node from, Point station, int k) {
+        List<Route> ret = new ArrayList<Route>();
+        Integer f = index.get(from);
+        if (f == null || !stationIndex.containsKey(station)) {
+            return ret;
+        }
+        for (int e = firstEdge[f]; e < firstEdge[f + 1]; e++) {
+            int rest = distanceToStation(edges[e].to, station);
+            if (rest != UNREACHABLE) {
+                ret.add(new Route(edges[e], edgeCost[e] + rest));
+            }
+        }
+        // at most a handful of edges, sort them by insertion
+        for (int i = 1; i < ret.size(); i++) {
+            for (int j = i; j > 0 && ret.get(j).cost < ret.get(j - 1).cost; j--) {
+                ret.set(j, ret.set(j - 1, ret.get(j)));
+            }
+        }
+        return ret.size() > k ? new ArrayList<Route>(ret.subList(0, k)) : ret;
+    }
+
+    /**
+     * A way to a station: the edge it starts with and its length
+     */
+    public static class Route {
+
+        public final TrackGraph.Edge first;
+        public final int cost;
+
+        Route(TrackGraph.Edge first, int cost) {
+            this.first = first;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * Binary min heap of node ids with decrease-key, on int arrays so that
+     * a Dijkstra doesn't allocate
+     */
+    private static final class IntHeap {
+
+        private final int[] heap;
+        private final int[] key;
+        private final int[] pos; // of each id in heap, -1 if not there
+        private int size;
+
+        IntHeap(int n) {
+            heap = new int[n];
+            key = new int[n];
+            pos = new int[n];
+            Arrays.fill(pos, -1);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Add id, or lower its key if it is already there
+         */
+        void push(int id, int k) {
+            int i = pos[id];
+            if (i < 0) {
+                i = size++;
+                heap[i] = id;
+                pos[id] = i;
+            }
+            key[id] = k;
+            up(i);
+        }
+
+        int pop() {
+            int top = heap[0];
+            pos[top] = -1;
+            size--;
+            if (size > 0) {
+                heap[0] = heap[size];
+                pos[heap[0]] = 0;
+                down(0);
+            }
+            return top;
+        }
+
+        private void up(int i) {
+            int id = heap[i];
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (key[heap[parent]] <= key[id]) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                pos[heap[i]] = i;
+                i = parent;
+            }
+            heap[i] = id;
+            pos[id] = i;
+        }
+
+        private void down(int i) {
+            int id = heap[i];
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && key[heap[child + 1]] < key[heap[child]]) {
+                    child++;
+                }
+                if (key[heap[child]] >= key[id]) {
+                    break;
+                }
+                heap[i] = heap[child];
+                pos[heap[i]] = i;
+                i = child;
+            }
+            heap[i] = id;
+            pos[id] = i;
+        }
+    }
+}
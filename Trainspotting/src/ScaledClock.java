@@ -0,0 +1,25 @@
+
+/**
+ * The wall clock, run the given number of times faster. A scale of 1 is
+ * the wall clock itself.
+ */
+public class ScaledClock implements Clock {
+
+    private final double scale;
+    private final long origin = System.nanoTime();
+
+    /**
+     * @param scale seconds of this clock per wall clock second
+     */
+    public ScaledClock(double scale) {
+        this.scale = scale;
+    }
+
+    public long nanoTime() {
+        return scale == 1 ? System.nanoTime() : (long) ((System.nanoTime() - origin) * scale);
+    }
+
+    public void sleep(long millis) throws InterruptedException {
+        Thread.sleep(scale == 1 ? millis : (long) (millis / scale));
+    }
+}
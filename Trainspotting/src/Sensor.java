@@ -1,6 +1,4 @@
 
-import java.util.concurrent.Semaphore;
-
 /**
  * One Sensor instance for each actual sensor, the sensors don't
  * contain important fields. Only method is getAction().
@@ -16,6 +14,10 @@ public class Sensor {
         this.railMap = railMap;
     }
 
+    public Point getPosition() {
+        return position;
+    }
+
     /**
      * When hitting this sensor, trains should call this with the direction
      * they came with, then a suitable action will be taken.
@@ -24,113 +26,157 @@ public class Sensor {
      * @param t    the train that should perform the actions
      */
     public void getAction(int dir0, final Train t) {
-        getTurnAroundAction(dir0, t);
-        getCrossingAction(dir0, t);
-        getSegementSemaphorAction(dir0, t);
+        RailMap map = railMap.snapshot();
+        t.followTimetable(position, dir0);
+        getTurnAroundAction(map, dir0, t);
+        if (!getCrossingAction(map, dir0, t) || !getSegementSemaphorAction(map, dir0, t)) {
+            // a wreck ahead, go back the way we came
+            t.turnAroundBlocked();
+            return;
+        }
+        getReservationAction(map, dir0, t);
     }
 
-    private void getTurnAroundAction(int dir0, Train t) {
-        final SearchResult nextSensor = railMap.getNextSensor(position, dir0);
+    private void getTurnAroundAction(RailMap map, int dir0, Train t) {
+        final SearchResult nextSensor = map.getNextSensor(position, dir0);
         if (nextSensor == null) {
+            SearchResult end = map.getNextSwitchOrEnd(position, dir0);
+            t.reachedEnd(end == null ? null : end.pos);
             t.stopWaitTurnAround();
         }
     }
 
-    private void getCrossingAction(int dir0, final Train t) {
-        final SearchResult nextCross = railMap.getNextCrossing(position, dir0);
-        final SearchResult nextSensor = railMap.getNextSensor(position, dir0);
+    /**
+     * @return false if the crossing is blocked
+     */
+    private boolean getCrossingAction(RailMap map, int dir0, final Train t) {
+        final SearchResult nextCross = map.getNextCrossing(position, dir0);
+        final SearchResult nextSensor = map.getNextSensor(position, dir0);
 
         if (nextCross == null || nextSensor == null) {
-            return;
+            return true;
         }
 
         if (nextCross.distance > nextSensor.distance) {
             // This means that there is a sensor closer to the crossing
             // than the actual sensor.
-            return;
+            return true;
         }
 
-        final Semaphore s = GlobalSemaphores.findOrCreate(nextCross.pos);
-        t.waitIfTakenThenGo(s);
-        t.addOneTimeAction(railMap.getSensor(nextSensor.pos), new Runnable() {
-
-            public void run() {
-                t.releaseSemaphor(s);
+        final TrackLock s = GlobalSemaphores.findOrCreate(nextCross.pos);
+        if (!t.tryAcquire(s)) {
+            Metrics.increment("stops at crossings");
+            if (!t.waitIfTakenThenGo(s)) {
+                return false;
             }
-        });
+        }
+        if (CrossingScheduler.isEnabled()) {
+            CrossingScheduler.occupy(nextCross.pos, t.getTrainId(), t.getSafeMaxVelocity(),
+                    t.getMotionModel());
+        }
+        t.releaseSemaphorAt(map.getSensor(nextSensor.pos), s);
+        return true;
+    }
 
+    /**
+     * Book the next crossing if it is further ahead than the next sensor,
+     * and slow down if it is going to be taken when the train gets there
+     * (see CrossingScheduler)
+     */
+    private void getReservationAction(RailMap map, int dir0, Train t) {
+        if (!CrossingScheduler.isEnabled()) {
+            return;
+        }
+        SearchResult nextSensor = map.getNextSensor(position, dir0);
+        if (nextSensor == null) {
+            return; // turned around
+        }
+        SearchResult nextCross = map.getNextCrossing(position, dir0);
+        int speed = t.getSafeMaxVelocity();
+        if (nextCross != null && nextCross.distance > nextSensor.distance
+                && nextCross.distance <= CrossingScheduler.HORIZON) {
+            speed = CrossingScheduler.plan(nextCross.pos, t.getTrainId(),
+                    nextCross.distance, speed, t.getMotionModel());
+        }
+        t.cruiseAt(speed);
     }
 
-    private void getSegementSemaphorAction(int dir0, final Train t) {
-        SearchResult searchSensor = railMap.getNextSensor(position, dir0);
-        final SearchResult searchSwitch = railMap.getNextSwitch(position, dir0);
+    /**
+     * @return false if every way past the switch is blocked
+     */
+    private boolean getSegementSemaphorAction(RailMap map, int dir0, final Train t) {
+        SearchResult searchSensor = map.getNextSensor(position, dir0);
+        final SearchResult searchSwitch = map.getNextSwitch(position, dir0);
 
         if (searchSensor == null || searchSwitch == null) {
-            return;
+            return true;
         }
         if (searchSwitch.distance > searchSensor.distance) {
             // This means that the current sensor isn't the one nearest
             // the segement-switch
-            return;
+            return true;
         }
 
-        Sensor nextSensor = railMap.getSensor(searchSensor.pos);
-        final Semaphore oldSemaphore = railMap.getSegmentSemaphor(position);
-        Semaphore newSemaphore =
-                railMap.getSegmentSemaphor(nextSensor.position);
+        Sensor nextSensor = map.getSensor(searchSensor.pos);
+        final TrackLock oldSemaphore = map.getSegmentSemaphor(position);
+        TrackLock newSemaphore =
+                map.getSegmentSemaphor(nextSensor.position);
 
 
         Point switchPos = searchSwitch.pos;
         int oldDirection = searchSwitch.direction;
         final int alterantiveDirection =
-                railMap.otherSwitchDirection(switchPos, oldDirection);
-
-        boolean couldAquire = newSemaphore.tryAcquire();
-        if (couldAquire) {
-            // newDirection should preferably be to move "forward" (=oldDirection)
-            int newDirection =
-                    railMap.canMoveInDirection(switchPos, oldDirection) ? oldDirection : alterantiveDirection;
-
-//            System.err.println("alternative 1");
-            railMap.switchSoGivenDirWorks(switchPos, oldDirection, newDirection);
-            t.addOneTimeAction(nextSensor, new Runnable() {
-
-                public void run() {
-                    t.releaseSemaphor(oldSemaphore);
-                }
-            });
-        } else if (alterantiveDirection >= 0) {
+                map.otherSwitchDirection(switchPos, oldDirection);
+
+        // newDirection should preferably be to move "forward" (=oldDirection)
+        int newDirection =
+                map.canMoveInDirection(switchPos, oldDirection) ? oldDirection : alterantiveDirection;
+        if (alterantiveDirection >= 0 && alterantiveDirection != newDirection
+                && t.adviseSwitch(switchPos, oldDirection) == alterantiveDirection) {
+            // the timetable or the route goes the other way, take it if it's free
+            Sensor advisedSensor = map.getSensor(map.getNextSensor(switchPos, alterantiveDirection).pos);
+            if (t.tryAcquire(map.getSegmentSemaphor(advisedSensor.position))) {
+                map.switchSoGivenDirWorks(switchPos, oldDirection, alterantiveDirection);
+                t.releaseSemaphorAt(advisedSensor, oldSemaphore);
+                return true;
+            }
+        }
+        boolean couldAquire = t.tryAcquire(newSemaphore);
+        Sensor otherSensor = null;
+        TrackLock otherSemaphore = null;
+        if (!couldAquire && alterantiveDirection >= 0) {
             // Ok, we simply must search again, but taking the other direction
             // of the switch, we know that there is another direction since
             // alternativeDirection >= 0
-//            System.err.println("alternative 2");
-            searchSensor = railMap.getNextSensor(switchPos, alterantiveDirection);
-            nextSensor = railMap.getSensor(searchSensor.pos);
-            newSemaphore = railMap.getSegmentSemaphor(nextSensor.position);
-
-
-            t.waitIfTakenThenGo(newSemaphore);
-            railMap.switchSoGivenDirWorks(switchPos, oldDirection, alterantiveDirection);
-            t.addOneTimeAction(nextSensor, new Runnable() {
+            searchSensor = map.getNextSensor(switchPos, alterantiveDirection);
+            otherSensor = map.getSensor(searchSensor.pos);
+            otherSemaphore = map.getSegmentSemaphor(otherSensor.position);
+        }
 
-                public void run() {
-                    t.releaseSemaphor(oldSemaphore);
-                }
-            });
+        if (couldAquire) {
+//            System.err.println("alternative 1");
+            map.switchSoGivenDirWorks(switchPos, oldDirection, newDirection);
+            t.releaseSemaphorAt(nextSensor, oldSemaphore);
+        } else if (otherSemaphore != null && !otherSemaphore.isBlocked()) {
+//            System.err.println("alternative 2");
+            if (!t.waitIfTakenThenGo(otherSemaphore)) {
+                return false;
+            }
+            map.switchSoGivenDirWorks(switchPos, oldDirection, alterantiveDirection);
+            t.releaseSemaphorAt(otherSensor, oldSemaphore);
         } else {
-            // since alternativeDirection == -1, then we must wait for other...
+            // since alternativeDirection == -1 (or is blocked), then we must
+            // wait for other...
 
 //            System.err.println("alternative 3");
-            t.waitIfTakenThenGo(newSemaphore);
-            railMap.switchSoGivenDirWorks(switchPos, oldDirection, oldDirection);
-            t.addOneTimeAction(nextSensor, new Runnable() {
-
-                public void run() {
-                    t.releaseSemaphor(oldSemaphore);
-                }
-            });
+            if (!t.waitIfTakenThenGo(newSemaphore)) {
+                return false;
+            }
+            map.switchSoGivenDirWorks(switchPos, oldDirection,
+                    alterantiveDirection >= 0 ? newDirection : oldDirection);
+            t.releaseSemaphorAt(nextSensor, oldSemaphore);
 
         }
-
+        return true;
     }
 }
@@ -0,0 +1,392 @@
+
+import TSim.TSimInterface;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Scanner;
+import java.util.Set;
+
+/**
+ * Finds a sensor placement for a map that is safe according to MapValidator
+ * and lets the trains through as fast as possible.
+ *
+ * Every crossing, switch and turn-around point needs a sensor on each of its
+ * arms, and the distance from that sensor decides both the max speed (a
+ * train must be able to stop in it) and how much track a train locks ahead
+ * of itself. For each speed the sensors are put exactly as far out as that
+ * speed needs, the placements are scored by
+ *
+ *     max safe speed / (mean locked distance + train length)
+ *
+ * which is roughly how many trains per time unit can pass a guarded point,
+ * and the best one is then thinned out by removing sensors that don't make
+ * it worse.
+ *
+ * The score is a proxy. With --score=headless the best placements by score
+ * are run through HeadlessTSim instead (see rankHeadless()), and the one
+ * with the most trips is taken.
+ *
+ * Usage: java SensorPlacer [options] rawmap outputmap
+ *
+ * Options:
+ *   --score=headless   rank the top placements by simulated trips
+ *   --top=5            how many placements to simulate
+ *   --duration=1800    virtual seconds per simulation
+ */
+public class SensorPlacer {
+
+    private final List<String> lines;
+    private final RailMap railMap;
+    private final List<List<Point>> arms = new ArrayList<List<Point>>();
+    private final List<Candidate> candidates = new ArrayList<Candidate>();
+    private Set<Point> best;
+    private double bestScore = -1;
+    private int bestSpeed;
+    private int bestTrips = -1;
+
+    public SensorPlacer(List<String> mapLines) {
+        this.lines = mapLines;
+        this.railMap = buildMap(new HashSet<Point>());
+        findArms();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("--run")) {
+            runOne(args);
+            return;
+        }
+        boolean headless = false;
+        int top = 5;
+        double duration = 1800;
+        List<String> files = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.equals("--score=headless")) {
+                headless = true;
+            } else if (arg.startsWith("--top=")) {
+                top = Integer.parseInt(arg.substring("--top=".length()));
+            } else if (arg.startsWith("--duration=")) {
+                duration = Double.parseDouble(arg.substring("--duration=".length()));
+            } else {
+                files.add(arg);
+            }
+        }
+        List<String> lines = new ArrayList<String>();
+        Scanner sc = new Scanner(new File(files.get(0)));
+        while (sc.hasNextLine()) {
+            lines.add(sc.nextLine());
+        }
+        SensorPlacer placer = new SensorPlacer(lines);
+        if (!placer.optimise()) {
+            System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ no safe placement found ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+            System.exit(1);
+        }
+        if (headless && !placer.rankHeadless(top, duration)) {
+            System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ no placement could be simulated, kept the best score ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+        }
+        PrintWriter out = new PrintWriter(new File(files.get(1)));
+        for (String line : placer.getPlacedLines()) {
+            out.println(line);
+        }
+        out.close();
+        System.err.println(placer.getBestSensors().size() + " sensors, max safe speed "
+                + placer.getBestSpeed() + ", score " + placer.getBestScore()
+                + (placer.getBestTrips() < 0 ? "" : ", " + placer.getBestTrips() + " trips"));
+    }
+
+    /**
+     * Search for the best placement
+     *
+     * @return false if no safe placement was found
+     */
+    public boolean optimise() {
+        for (int speed = 1; speed <= TrainPhysics.MAX_SPEED; speed++) {
+            Set<Point> sensors = placeFor(speed);
+            if (sensors != null) {
+                consider(sensors);
+            }
+        }
+        if (best == null) {
+            return false;
+        }
+        // try to get rid of sensors, which can only make trains lock less
+        // track in front of them
+        for (Point p : new ArrayList<Point>(best)) {
+            Set<Point> fewer = new HashSet<Point>(best);
+            fewer.remove(p);
+            consider(fewer);
+        }
+        return true;
+    }
+
+    public Set<Point> getBestSensors() {
+        return best;
+    }
+
+    public int getBestSpeed() {
+        return bestSpeed;
+    }
+
+    public double getBestScore() {
+        return bestScore;
+    }
+
+    /**
+     * @return the trips the best placement made in HeadlessTSim, -1 if it
+     *         hasn't been simulated
+     */
+    public int getBestTrips() {
+        return bestTrips;
+    }
+
+    /**
+     * Run the top placements by score through HeadlessTSim, each in a JVM
+     * of its own since the controller keeps its state in static fields: in
+     * virtual time and with a fixed seed, every train of the map at the
+     * placement's max safe speed. The one with the most trips and no
+     * crashes becomes the best, the score only breaks ties. A map without
+     * trains or stations makes no trips, so it keeps the best by score.
+     *
+     * @return false if none of the placements could be run
+     */
+    public boolean rankHeadless(int top, double seconds) throws IOException, InterruptedException {
+        List<Candidate> ranked = new ArrayList<Candidate>();
+        for (Candidate c : candidates) {
+            if (!ranked.contains(c)) {
+                ranked.add(c);
+            }
+        }
+        Collections.sort(ranked, new Comparator<Candidate>() {
+
+            public int compare(Candidate a, Candidate b) {
+                if (a.score != b.score) {
+                    return a.score > b.score ? -1 : 1;
+                }
+                return a.sensors.size() - b.sensors.size();
+            }
+        });
+        Candidate winner = null;
+        for (Candidate c : ranked.subList(0, Math.min(top, ranked.size()))) {
+            File map = File.createTempFile("placement", ".map");
+            try {
+                PrintWriter out = new PrintWriter(map);
+                for (String line : withSensors(c.sensors)) {
+                    out.println(line);
+                }
+                out.close();
+                simulate(c, map, seconds);
+            } finally {
+                map.delete();
+            }
+            System.err.println("score " + c.score + ", speed " + c.speed + ", "
+                    + c.sensors.size() + " sensors: "
+                    + (c.trips < 0 ? "crashed or failed" : c.trips + " trips"));
+            if (c.trips >= 0 && (winner == null || c.trips > winner.trips)) {
+                winner = c;
+            }
+        }
+        if (winner == null) {
+            return false;
+        }
+        best = winner.sensors;
+        bestScore = winner.score;
+        bestSpeed = winner.speed;
+        bestTrips = winner.trips;
+        return true;
+    }
+
+    /**
+     * Sets c.trips, -1 if the run failed or a train crashed
+     */
+    private static void simulate(Candidate c, File map, double seconds)
+            throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java";
+        ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "SensorPlacer", "--run", map.getPath(), "" + c.speed, "" + seconds);
+        pb.redirectErrorStream(true);
+        Process p = pb.start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("RESULT ")) {
+                String[] fields = line.split(" ");
+                int crashes = Integer.parseInt(fields[2]);
+                c.trips = crashes > 0 ? -1 : Integer.parseInt(fields[1]);
+            }
+        }
+        p.waitFor();
+    }
+
+    /**
+     * The forked JVM: --run mapfile speed seconds
+     */
+    private static void runOne(String[] args) throws IOException, InterruptedException {
+        File map = new File(args[1]);
+        int[] speeds = new int[1000];
+        Arrays.fill(speeds, Integer.parseInt(args[2]));
+        HeadlessTSim sim = new HeadlessTSim(map, 0);
+        TSimInterface.init(sim.getTransport());
+        DeterministicScheduler.install(new DeterministicScheduler(1));
+        sim.start();
+        new Lab1(map, speeds);
+        sim.run(Double.parseDouble(args[3]));
+        System.out.println("RESULT " + sim.getTrips() + " "
+                + (sim.getCollisions() + sim.getDerailments()));
+        System.exit(0);
+    }
+
+    /**
+     * @return the map file lines, with the best sensors marked
+     */
+    public List<String> getPlacedLines() {
+        return withSensors(best);
+    }
+
+    /**
+     * @return the map file lines, with the given sensors marked
+     */
+    public List<String> getPlacedLines(Set<Point> sensors) {
+        return withSensors(sensors);
+    }
+
+    private void consider(Set<Point> sensors) {
+        MapValidator validator = new MapValidator(buildMap(sensors));
+        int speed = validator.getMaxSafeSpeed();
+        if (speed == 0) {
+            return;
+        }
+        double score = speed / (validator.getMeanRoom() + 1 + TrainPhysics.TRAIN_LENGTH);
+        candidates.add(new Candidate(sensors, speed, score));
+        if (score > bestScore || (score == bestScore && sensors.size() < best.size())) {
+            best = sensors;
+            bestScore = score;
+            bestSpeed = speed;
+        }
+    }
+
+    /**
+     * Put a sensor on every arm, just far enough out for the given speed
+     *
+     * @return null if some arm is too short
+     */
+    private Set<Point> placeFor(int speed) {
+        return placeAt(TrainPhysics.stoppingDistance(speed) + 1);
+    }
+
+    /**
+     * Put a sensor on every arm, the given number of cells out from the
+     * crossing, switch or end
+     *
+     * @return null if some arm is too short
+     */
+    public Set<Point> placeAt(int distance) {
+        Set<Point> sensors = new HashSet<Point>();
+        for (List<Point> arm : arms) {
+            if (arm.size() < distance) {
+                return null;
+            }
+            sensors.add(arm.get(distance - 1));
+        }
+        return sensors;
+    }
+
+    /**
+     * An arm is the track leading away from a crossing, switch or end, up to
+     * the next one of those. The cells are ordered by distance.
+     */
+    private void findArms() {
+        List<Point> keyPoints = new ArrayList<Point>();
+        keyPoints.addAll(railMap.getCrossings());
+        keyPoints.addAll(railMap.getSwitches());
+        keyPoints.addAll(railMap.getEnds());
+        int maxLength = railMap.getWidth() * railMap.getHeight();
+        for (Point key : keyPoints) {
+            for (int dir0 = 0; dir0 < 4; dir0++) {
+                if (!railMap.canMoveInDirection(key, dir0)) {
+                    continue;
+                }
+                List<Point> arm = new ArrayList<Point>();
+                Point now = key;
+                int dir = dir0;
+                while (arm.size() < maxLength) {
+                    now = Point.createNewAndMove(now, dir);
+                    if (isKeyPoint(now)) {
+                        break;
+                    }
+                    arm.add(now);
+                    dir = railMap.getPrefferedDirection(now, dir);
+                    if (dir == -1) {
+                        break;
+                    }
+                }
+                arms.add(arm);
+            }
+        }
+    }
+
+    private boolean isKeyPoint(Point p) {
+        return railMap.isCrossing(p) || railMap.isSwitch(p) || railMap.isEnd(p);
+    }
+
+    private RailMap buildMap(Set<Point> sensors) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : withSensors(sensors)) {
+            sb.append(line).append('\n');
+        }
+        return new RailMap(new Scanner(sb.toString()));
+    }
+
+    private List<String> withSensors(Set<Point> sensors) {
+        List<String> ret = new ArrayList<String>();
+        for (String line : lines) {
+            String[] sline = line.trim().split(" ");
+            if (sline[0].equals("R") && !sline[sline.length - 1].equals("station")) {
+                Point p = new Point(Integer.parseInt(sline[1]), Integer.parseInt(sline[2]));
+                sline[sline.length - 1] = sensors.contains(p) ? "Sensor" : "NoSensor";
+                StringBuilder sb = new StringBuilder(sline[0]);
+                for (int i = 1; i < sline.length; i++) {
+                    sb.append(' ').append(sline[i]);
+                }
+                line = sb.toString();
+            }
+            ret.add(line);
+        }
+        return ret;
+    }
+
+    /**
+     * A placement that has been scored, equal to another one with the same
+     * sensors
+     */
+    private static class Candidate {
+
+        final Set<Point> sensors;
+        final int speed;
+        final double score;
+        int trips = -1;
+
+        Candidate(Set<Point> sensors, int speed, double score) {
+            this.sensors = sensors;
+            this.speed = speed;
+            this.score = score;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Candidate && ((Candidate) o).sensors.equals(sensors);
+        }
+
+        @Override
+        public int hashCode() {
+            return sensors.hashCode();
+        }
+    }
+}
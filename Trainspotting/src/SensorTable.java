@@ -0,0 +1,276 @@
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Precomputed search results for every sensor in every direction, together
+ * with the segment each sensor lies on. Trains ask these questions every time
+ * they hit a sensor, so they are answered once when the map is loaded.
+ *
+ * The table is filled in parallel, each worker owns a disjoint range of
+ * sensors, and it is never modified after it is built.
+ * The SearchResults handed out are shared and must not be modified.
+ *
+ * Every sensor also remembers which cells its searches walked over (its
+ * footprint), so when the map changes only the sensors whose footprint
+ * touches the change have to be searched again, see update().
+ */
+final class SensorTable {
+
+    static final int SENSOR = 0;
+    static final int CROSSING = 1;
+    static final int SWITCH = 2;
+    private static final int NUM_KINDS = 3;
+    private final int width, height;
+    private final int[][] index; // sensor id for each point, -1 if no sensor
+    private final Point[] sensors;
+    private final SearchResult[] results; // ((id * 4) + dir) * NUM_KINDS + kind
+    private final Point[] segmentEnds; // id * 2 and id * 2 + 1, null if none
+    private final int[][] footprints; // cells walked, as x * height + y
+    // which sensors walked over each cell: the ids for cell c are
+    // cellSensors[cellStart[c]] .. cellSensors[cellStart[c + 1] - 1]
+    private final int[] cellStart;
+    private final int[] cellSensors;
+    private int recomputed;
+
+    private SensorTable(int width, int height, int[][] index, Point[] sensors,
+            SearchResult[] results, Point[] segmentEnds, int[][] footprints) {
+        this.width = width;
+        this.height = height;
+        this.index = index;
+        this.sensors = sensors;
+        this.results = results;
+        this.segmentEnds = segmentEnds;
+        this.footprints = footprints;
+
+        cellStart = new int[width * height + 1];
+        for (int[] footprint : footprints) {
+            for (int cell : footprint) {
+                cellStart[cell + 1]++;
+            }
+        }
+        for (int c = 0; c < width * height; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        cellSensors = new int[cellStart[width * height]];
+        int[] fill = Arrays.copyOf(cellStart, width * height);
+        for (int id = 0; id < footprints.length; id++) {
+            for (int cell : footprints[id]) {
+                cellSensors[fill[cell]++] = id;
+            }
+        }
+    }
+
+    /**
+     * @return true if p is a sensor this table knows about
+     */
+    boolean covers(Point p) {
+        return p.x >= 0 && p.x < width && p.y >= 0 && p.y < height
+                && index[p.x][p.y] >= 0;
+    }
+
+    /**
+     * Cached result of searching from the sensor at p, p must be covered
+     *
+     * @param kind one of SENSOR, CROSSING or SWITCH
+     */
+    SearchResult lookup(int kind, Point p, int dir) {
+        return results[(index[p.x][p.y] * 4 + dir) * NUM_KINDS + kind];
+    }
+
+    /**
+     * The (prehacked) endpoints of the segment the sensor at p lies on, or
+     * null if the sensor isn't on a segment. p must be covered.
+     */
+    Point[] segment(Point p) {
+        int id = index[p.x][p.y];
+        if (segmentEnds[id * 2] == null) {
+            return null;
+        }
+        return new Point[]{segmentEnds[id * 2], segmentEnds[id * 2 + 1]};
+    }
+
+    int size() {
+        return sensors.length;
+    }
+
+    /**
+     * @return how many sensors were searched when building this table, the
+     *         rest were reused from the table it was updated from
+     */
+    int getRecomputed() {
+        return recomputed;
+    }
+
+    /**
+     * Analyse all sensors of the map using the given number of threads.
+     */
+    static SensorTable build(RailMap map, int threads) {
+        return compute(map, null, null, threads);
+    }
+
+    /**
+     * Make a table for a changed map, reusing everything from this table
+     * that the change can't have affected.
+     *
+     * @param map     the changed map
+     * @param changed the cells whose rails or sensor changed
+     * @return the new table, this table is left untouched
+     */
+    SensorTable update(RailMap map, Set<Point> changed, int threads) {
+        boolean[] affected = new boolean[sensors.length];
+        for (Point p : changed) {
+            // a change also changes where the trains can go from the
+            // neighbouring cells
+            for (int dir = -1; dir < 4; dir++) {
+                Point q = dir < 0 ? p : Point.createNewAndMove(p, dir);
+                if (q.x < 0 || q.y < 0 || q.x >= width || q.y >= height) {
+                    continue;
+                }
+                int cell = q.x * height + q.y;
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                    affected[cellSensors[i]] = true;
+                }
+            }
+        }
+        return compute(map, this, affected, threads);
+    }
+
+    private static SensorTable compute(final RailMap map, SensorTable old,
+            boolean[] affectedOld, int threads) {
+        final int height = map.getHeight();
+        List<Point> sensorList = map.getSensors();
+        final Point[] sensors = sensorList.toArray(new Point[sensorList.size()]);
+        int[][] index = new int[map.getWidth()][height];
+        for (int[] column : index) {
+            Arrays.fill(column, -1);
+        }
+        for (int id = 0; id < sensors.length; id++) {
+            index[sensors[id].x][sensors[id].y] = id;
+        }
+        final SearchResult[] results = new SearchResult[sensors.length * 4 * NUM_KINDS];
+        final Point[] segmentEnds = new Point[sensors.length * 2];
+        final int[][] footprints = new int[sensors.length][];
+
+        final List<Integer> todo = new ArrayList<Integer>();
+        for (int id = 0; id < sensors.length; id++) {
+            Point p = sensors[id];
+            if (old == null || !old.covers(p) || affectedOld[old.index[p.x][p.y]]) {
+                todo.add(id);
+                continue;
+            }
+            int oldId = old.index[p.x][p.y];
+            System.arraycopy(old.results, oldId * 4 * NUM_KINDS,
+                    results, id * 4 * NUM_KINDS, 4 * NUM_KINDS);
+            segmentEnds[id * 2] = old.segmentEnds[oldId * 2];
+            segmentEnds[id * 2 + 1] = old.segmentEnds[oldId * 2 + 1];
+            footprints[id] = old.footprints[oldId];
+        }
+
+        // a few chunks per thread so one slow part of the map doesn't
+        // leave the other threads idle
+        int numChunks = Math.max(1, Math.min(todo.size(), threads * 4));
+        List<Callable<Object>> chunks = new ArrayList<Callable<Object>>();
+        for (int c = 0; c < numChunks; c++) {
+            final int from = c * todo.size() / numChunks;
+            final int to = (c + 1) * todo.size() / numChunks;
+            chunks.add(new Callable<Object>() {
+
+                public Object call() {
+                    for (int i = from; i < to; i++) {
+                        int id = todo.get(i);
+                        analyse(map, sensors[id], id, results, segmentEnds, footprints);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        if (threads <= 1 || numChunks == 1) {
+            for (Callable<Object> chunk : chunks) {
+                try {
+                    chunk.call();
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                for (Future<Object> f : pool.invokeAll(chunks)) {
+                    f.get();
+                }
+            } catch (InterruptedException ex) {
+                throw new RuntimeException("interrupted while analysing map", ex);
+            } catch (ExecutionException ex) {
+                throw new RuntimeException(ex.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+        SensorTable table = new SensorTable(map.getWidth(), height, index, sensors,
+                results, segmentEnds, footprints);
+        table.recomputed = todo.size();
+        return table;
+    }
+
+    private static void analyse(RailMap map, Point p, int id,
+            SearchResult[] results, Point[] segmentEnds, int[][] footprints) {
+        Footprint footprint = new Footprint(map.getHeight());
+        for (int dir = 0; dir < 4; dir++) {
+            int base = (id * 4 + dir) * NUM_KINDS;
+            results[base + SENSOR] = map.findNextSensor(p, dir, footprint);
+            results[base + CROSSING] = map.findNextCrossing(p, dir, footprint);
+            results[base + SWITCH] = map.findNextSwitch(p, dir, footprint);
+        }
+        Point[] ends = map.findSegment(p, footprint);
+        if (ends != null) {
+            segmentEnds[id * 2] = ends[0];
+            segmentEnds[id * 2 + 1] = ends[1];
+        }
+        footprints[id] = footprint.toArray();
+    }
+
+    /**
+     * Collects the cells a search walks over
+     */
+    static final class Footprint {
+
+        private final int height;
+        private int[] cells = new int[16];
+        private int size = 0;
+
+        Footprint(int height) {
+            this.height = height;
+        }
+
+        void add(Point p) {
+            if (size == cells.length) {
+                cells = Arrays.copyOf(cells, size * 2);
+            }
+            cells[size++] = p.x * height + p.y;
+        }
+
+        /**
+         * @return the distinct cells, sorted
+         */
+        int[] toArray() {
+            int[] sorted = Arrays.copyOf(cells, size);
+            Arrays.sort(sorted);
+            int n = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (n == 0 || sorted[i] != sorted[n - 1]) {
+                    sorted[n++] = sorted[i];
+                }
+            }
+            return Arrays.copyOf(sorted, n);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+
+import TSim.SensorEvent;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * What a controller needs to know when it only controls one region of the
+ * map: which sensors are its own, and how to hand trains over to the other
+ * regions. Handovers go through the control connection to the
+ * ShardCoordinator, one line each:
+ *
+ *   HANDOVER sensorX sensorY status trainState...
+ *
+ * where trainState is Train.handoverState(). The coordinator sends the same
+ * line to the controller of the region the sensor belongs to.
+ */
+public class ShardContext {
+
+    private final RailMap railMap;
+    private final MapPartition partition;
+    private final int region;
+    private final BufferedReader in;
+    private final PrintWriter out;
+
+    public ShardContext(RailMap railMap, MapPartition partition, int region, int port)
+            throws IOException {
+        this.railMap = railMap;
+        this.partition = partition;
+        this.region = region;
+        Socket socket = new Socket(InetAddress.getByName(null), port);
+        socket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        out = new PrintWriter(socket.getOutputStream(), true);
+        out.println("CONTROL " + region);
+    }
+
+    public int getRegion() {
+        return region;
+    }
+
+    /**
+     * @return true if trains hitting the sensor at p are controlled here
+     */
+    public boolean owns(Point p) {
+        int r = partition.regionOf(p);
+        return r < 0 || r == region;
+    }
+
+    /**
+     * @return true if the train starts in this region
+     */
+    public boolean ownsStart(int trainId) {
+        return partition.regionOf(railMap, railMap.trainStartPos(trainId)) == region;
+    }
+
+    /**
+     * Give the train to the controller of the region it just entered, the
+     * train thread must stop after this.
+     *
+     * @param event the sensor event that took the train into the region
+     */
+    public void handOver(Train t, SensorEvent event) {
+        String line = "HANDOVER " + event.getXpos() + " " + event.getYpos() + " "
+                + event.getStatus() + " " + t.handoverState();
+        synchronized (out) {
+            out.println(line);
+        }
+    }
+
+    /**
+     * Start accepting trains handed over from the other regions
+     */
+    public void start() {
+        Thread listener = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        receive(line.split(" "));
+                    }
+                } catch (IOException ex) {
+                    System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ lost the coordinator: " + ex.getMessage() + " ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+                }
+                // nothing can be done without the coordinator
+                System.exit(1);
+            }
+        };
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    private void receive(String[] tokens) {
+        if (!tokens[0].equals("HANDOVER")) {
+            System.err.println("unknown message from coordinator: " + tokens[0]);
+            return;
+        }
+        String[] state = new String[tokens.length - 4];
+        System.arraycopy(tokens, 4, state, 0, state.length);
+        SensorEvent event = new SensorEvent(Integer.parseInt(state[0]),
+                Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]),
+                Integer.parseInt(tokens[3]));
+        new Train(railMap, this, state, event).start();
+    }
+}
@@ -0,0 +1,335 @@
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a map with one Lab1 process per region (see MapPartition) and sits
+ * between them and tsim, so that tsim still sees a single controller.
+ *
+ * Usage: java ShardCoordinator numShards [Lab1 options] mapfile [speed1 ...]
+ *
+ * The controllers are started on this machine with the same class path.
+ * Their standard input and output are their tsim, the coordinator sends each
+ * sensor event to the controller that owns the train and each command status
+ * to the controller that sent the command. A train hitting a sensor of
+ * another region is handed over (see ShardContext), sensor events arriving
+ * for it meanwhile are held back until the new controller has it.
+ *
+ * The semaphores shared between regions live here, the controllers use them
+ * through RemoteTrackLock over a loopback socket.
+ */
+public class ShardCoordinator {
+
+    private final MapPartition partition;
+    private final int numShards;
+    private final ServerSocket server;
+    private final PrintWriter tsim;
+    private final PrintWriter[] shardIn;
+    private final PrintWriter[] control;
+    private final LinkedList<Integer> awaitingStatus = new LinkedList<Integer>();
+    private final Map<Integer, Integer> owner = new HashMap<Integer, Integer>();
+    private final Map<Integer, List<String>> inTransit = new HashMap<Integer, List<String>>();
+
+    public static void main(String[] args) throws IOException {
+        int numShards = Integer.parseInt(args[0]);
+        List<String> lab1Args = new ArrayList<String>();
+        String mapFile = null;
+        boolean stats = false;
+        boolean policyGiven = false;
+        boolean priorities = false;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            lab1Args.add(arg);
+            if (arg.startsWith("--locks=")) {
+                String policy = arg.substring("--locks=".length()).toUpperCase();
+                GlobalSemaphores.setPolicy(OccupancyLock.Policy.valueOf(policy));
+                policyGiven = true;
+            } else if (arg.startsWith("--priority=")) {
+                // the controllers send the priorities with every ACQUIRE
+                priorities = true;
+            } else if (arg.startsWith("--aging=")) {
+                Lab1.setAging(arg.substring("--aging=".length()));
+            } else if (arg.equals("--stats")) {
+                stats = true;
+            } else if (!arg.startsWith("--") && mapFile == null) {
+                mapFile = arg;
+            }
+        }
+        if (priorities && !policyGiven) {
+            GlobalSemaphores.setPolicy(OccupancyLock.Policy.PRIORITY);
+        }
+        if (stats) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+
+                @Override
+                public void run() {
+                    GlobalSemaphores.printStatistics();
+                }
+            });
+        }
+        ShardCoordinator coordinator =
+                new ShardCoordinator(new RailMap(new File(mapFile)), numShards);
+        coordinator.startShards(lab1Args);
+        coordinator.readTSim(new BufferedReader(new InputStreamReader(System.in)));
+    }
+
+    public ShardCoordinator(RailMap railMap, int numShards) throws IOException {
+        this.numShards = numShards;
+        this.partition = new MapPartition(railMap, numShards);
+        GlobalSemaphores.warmUp(railMap);
+        this.tsim = new PrintWriter(System.out, true);
+        this.shardIn = new PrintWriter[numShards];
+        this.control = new PrintWriter[numShards];
+        for (int tid = 1; tid <= railMap.getNumTrains(); tid++) {
+            owner.put(tid, partition.regionOf(railMap, railMap.trainStartPos(tid)));
+        }
+        System.err.println("Split map into " + numShards + " regions, "
+                + partition.getSharedKeys().size() + " shared semaphores");
+
+        server = new ServerSocket(0, 50, InetAddress.getByName(null));
+        Thread acceptor = new Thread() {
+
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        serve(server.accept());
+                    } catch (IOException ex) {
+                        System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ coordinator accept failed: " + ex.getMessage() + " ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+                        return;
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Start one Lab1 for each region
+     */
+    public void startShards(List<String> lab1Args) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java";
+        final List<Process> processes = new ArrayList<Process>();
+        for (int i = 0; i < numShards; i++) {
+            List<String> command = new ArrayList<String>();
+            command.add(java);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add("Lab1");
+            command.add("--shard=" + i + "/" + numShards);
+            command.add("--coordinator=" + server.getLocalPort());
+            command.addAll(lab1Args);
+            Process p = new ProcessBuilder(command).start();
+            processes.add(p);
+            shardIn[i] = new PrintWriter(new OutputStreamWriter(p.getOutputStream()), true);
+            pumpCommands(i, p.getInputStream());
+            pumpErrors(i, p.getErrorStream());
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+
+            @Override
+            public void run() {
+                for (Process p : processes) {
+                    p.destroy();
+                }
+            }
+        });
+    }
+
+    /**
+     * Read tsim's output and send every line to the controller it is for,
+     * returns when tsim goes away.
+     */
+    public void readTSim(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] tokens = line.trim().split("\\s+");
+            if (tokens[0].length() == 0) {
+                continue;
+            }
+            if (tokens[0].endsWith("Status")) {
+                int shard;
+                synchronized (this) {
+                    shard = awaitingStatus.removeFirst();
+                }
+                shardIn[shard].println(line);
+            } else if (tokens[0].equals("Sensor")) {
+                Point p = new Point(Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]));
+                routeSensor(Integer.parseInt(tokens[1]), p, !tokens[4].equals("inactive"), line);
+            } else {
+                // the train error events
+                synchronized (this) {
+                    forward(Integer.parseInt(tokens[1]), line);
+                }
+            }
+        }
+        System.exit(1);
+    }
+
+    private synchronized void routeSensor(int trainId, Point p, boolean active, String line) {
+        if (inTransit.containsKey(trainId)) {
+            inTransit.get(trainId).add(line);
+            return;
+        }
+        int current = ownerOf(trainId);
+        forward(trainId, line);
+        int region = partition.regionOf(p);
+        if (active && region >= 0 && region != current) {
+            // the controller will hand the train over when it sees this
+            inTransit.put(trainId, new ArrayList<String>());
+        }
+    }
+
+    private int ownerOf(int trainId) {
+        Integer shard = owner.get(trainId);
+        return shard == null ? 0 : shard;
+    }
+
+    private void forward(int trainId, String line) {
+        shardIn[ownerOf(trainId)].println(line);
+    }
+
+    private synchronized void handOver(String line) throws InterruptedException {
+        String[] tokens = line.split(" ");
+        Point p = new Point(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]));
+        int trainId = Integer.parseInt(tokens[4]);
+        int to = partition.regionOf(p);
+        while (control[to] == null) {
+            wait();
+        }
+        control[to].println(line);
+        owner.put(trainId, to);
+        System.err.println("Train " + trainId + " handed over to region " + to);
+        List<String> held = inTransit.remove(trainId);
+        if (held != null) {
+            for (String event : held) {
+                shardIn[to].println(event);
+            }
+        }
+    }
+
+    private synchronized void registerControl(int shard, PrintWriter out) {
+        control[shard] = out;
+        notifyAll();
+    }
+
+    /**
+     * Commands from a controller go to tsim, remembering who waits for the
+     * status
+     */
+    private void pumpCommands(final int shard, final InputStream commands) {
+        new Thread() {
+
+            @Override
+            public void run() {
+                BufferedReader in = new BufferedReader(new InputStreamReader(commands));
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        synchronized (ShardCoordinator.this) {
+                            awaitingStatus.addLast(shard);
+                            tsim.println(line);
+                        }
+                    }
+                } catch (IOException ex) {
+                }
+                System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ controller " + shard + " exited ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+            }
+        }.start();
+    }
+
+    private void pumpErrors(final int shard, final InputStream errors) {
+        Thread t = new Thread() {
+
+            @Override
+            public void run() {
+                BufferedReader in = new BufferedReader(new InputStreamReader(errors));
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        System.err.println("[" + shard + "] " + line);
+                    }
+                } catch (IOException ex) {
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * A connection from a controller: either its control connection or the
+     * lock connection of one of its threads
+     */
+    private void serve(final Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        final PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        Thread t = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    String hello = in.readLine();
+                    if (hello == null) {
+                        return;
+                    }
+                    if (hello.startsWith("CONTROL ")) {
+                        registerControl(Integer.parseInt(hello.substring(8)), out);
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            handOver(line);
+                        }
+                    } else {
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            out.println(lockRequest(line.split(" ")));
+                        }
+                    }
+                } catch (IOException ex) {
+                } catch (InterruptedException ex) {
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private String lockRequest(String[] tokens) throws InterruptedException {
+        TrackLock lock = GlobalSemaphores.findOrCreate(
+                new Point(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2])));
+        if (tokens[0].equals("ACQUIRE")) {
+            try {
+                lock.acquire(Integer.parseInt(tokens[3]));
+            } catch (TrackBlockedException ex) {
+                return "BLOCKED";
+            }
+            return "OK";
+        } else if (tokens[0].equals("TRY")) {
+            return lock.tryAcquire() ? "OK" : "NO";
+        } else if (tokens[0].equals("BLOCK")) {
+            lock.block();
+            return "OK";
+        } else if (tokens[0].equals("BLOCKED")) {
+            return lock.isBlocked() ? "YES" : "NO";
+        } else {
+            lock.release();
+            return "OK";
+        }
+    }
+}
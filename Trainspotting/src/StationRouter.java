@@ -0,0 +1,126 @@
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes the trains from station to station of the map file. A train
+ * heads for the next station after the one it last turned around at, in
+ * the order of the map file, and at every switch it tries the way that gets
+ * it there soonest first (see Sensor). Stations are served by the ends of
+ * lines near them, as in Timetable.
+ *
+ * How soon is measured in cells at a steady speed, a turnaround counting
+ * as TURN_AROUND_COST cells, looked up in a RoutingTable made with the
+ * router (only the distances to the stations, not all pairs). The branches
+ * of a switch are ranked by RoutingTable.alternatives(), and a train that
+ * finds the best one taken goes by the next one.
+ */
+public class StationRouter {
+
+    /**
+     * What turning around costs, in cells of driving
+     */
+    public static final int TURN_AROUND_COST = 20;
+    /**
+     * Ways out of a node to rank, it has at most three
+     */
+    private static final int WAYS_OUT = 3;
+    private final List<Point> stations;
+    private final RoutingTable table;
+    // the nodes just before each switch
+    private final Map<Point, List<TrackGraph.Node>> bySwitch = new HashMap<Point, List<TrackGraph.Node>>();
+
+    public StationRouter(RailMap map) {
+        this(map, new TrackGraph(map));
+    }
+
+    public StationRouter(RailMap map, TrackGraph graph) {
+        stations = new ArrayList<Point>(map.getStations());
+        table = new RoutingTable(map, graph, TURN_AROUND_COST, false);
+        for (TrackGraph.Node[] byDir : graph.getNodes()) {
+            for (TrackGraph.Node n : byDir) {
+                if (n == null) {
+                    continue;
+                }
+                for (TrackGraph.Edge e : n.edges) {
+                    if (e.switchPos == null) {
+                        continue;
+                    }
+                    if (!bySwitch.containsKey(e.switchPos)) {
+                        bySwitch.put(e.switchPos, new ArrayList<TrackGraph.Node>());
+                    }
+                    if (!bySwitch.get(e.switchPos).contains(n)) {
+                        bySwitch.get(e.switchPos).add(n);
+                    }
+                }
+            }
+        }
+    }
+
+    public RoutingTable getTable() {
+        return table;
+    }
+
+    public List<Point> getStations() {
+        return stations;
+    }
+
+    /**
+     * @return the station to head for after turning around at the end of
+     *         a line at end, or first if end serves no station; null if the
+     *         map has no stations
+     */
+    public Point nextStation(Point end) {
+        if (stations.isEmpty()) {
+            return null;
+        }
+        for (int i = 0; i < stations.size(); i++) {
+            if (Timetable.serves(end, stations.get(i))) {
+                return stations.get((i + 1) % stations.size());
+            }
+        }
+        return stations.get(0);
+    }
+
+    /**
+     * @return cells to the station from a node, -1 if it can't be reached
+     */
+    public int cost(TrackGraph.Node node, Point station) {
+        int c = table.distanceToStation(node, station);
+        return c == RoutingTable.UNREACHABLE ? -1 : c;
+    }
+
+    /**
+     * @return the direction to leave the switch in to get to the station
+     *         soonest, -1 if every way is as good
+     */
+    public int advise(Point station, Point switchPos, int dirIn) {
+        List<TrackGraph.Node> before = bySwitch.get(switchPos);
+        if (station == null || before == null) {
+            return -1;
+        }
+        // the ways into a switch from one side all start at the same sensor
+        for (TrackGraph.Node n : before) {
+            RoutingTable.Route best = null;
+            boolean tie = false;
+            // ranked shortest first
+            for (RoutingTable.Route r : table.alternatives(n, station, WAYS_OUT)) {
+                TrackGraph.Edge e = r.first;
+                if (!switchPos.equals(e.switchPos) || e.switchIn != dirIn) {
+                    continue;
+                }
+                if (best == null) {
+                    best = r;
+                } else if (r.cost == best.cost && e.switchOut != best.first.switchOut) {
+                    tie = true;
+                }
+            }
+            if (best != null) {
+                return tie ? -1 : best.first.switchOut;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,82 @@
+package TSim;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/** A transport to a simulator running in the same JVM. The simulator uses
+ *  the methods takeCommand(), send() and close(); commands are handed over
+ *  as records of TSimProtocol.
+ *
+ */
+
+public class InMemoryTransport implements TSimTransport {
+
+    /* offered by close() so that a blocked read() returns null */
+    private static final TSimInformation CLOSED = new TSimInformation() {};
+
+    private final LinkedBlockingQueue<int[]> commands = new LinkedBlockingQueue<int[]>();
+    private final LinkedBlockingQueue<TSimInformation> events =
+	new LinkedBlockingQueue<TSimInformation>();
+
+    public TSimInformation read() {
+	TSimInformation info;
+	try {
+	    info = events.take();
+	} catch (InterruptedException e) {
+	    return null;
+	}
+	if (info == CLOSED) {
+	    events.offer(CLOSED);
+	    return null;
+	}
+	return info;
+    }
+
+    public void sendSetSpeed(int trainId, int speed) {
+	commands.offer(new int[]{TSimProtocol.SET_SPEED, trainId, speed, 0});
+    }
+
+    public void sendSetSwitch(int xPos, int yPos, int switchDir) {
+	commands.offer(new int[]{TSimProtocol.SET_SWITCH, xPos, yPos, switchDir});
+    }
+
+    /** Waits for the next command: {SET_SPEED, trainId, speed, 0} or
+     *  {SET_SWITCH, x, y, switchDir}.
+     *
+     */
+
+    public int[] takeCommand() throws InterruptedException {
+	return commands.take();
+    }
+
+    /** Returns the next command or null if there is none.
+     *
+     */
+
+    public int[] pollCommand() {
+	return commands.poll();
+    }
+
+    /** Delivers a status or an event to the controller.
+     *
+     */
+
+    public void send(TSimInformation info) {
+	events.offer(info);
+    }
+
+    /** Returns true if no command and no event is waiting to be taken.
+     *
+     */
+
+    public boolean isIdle() {
+	return commands.isEmpty() && events.isEmpty();
+    }
+
+    /** Makes read() return null, as if the simulator had exited.
+     *
+     */
+
+    public void close() {
+	events.offer(CLOSED);
+    }
+}
@@ -0,0 +1,62 @@
+package TSim;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/** A stand-in for tsim on the other end of a socket, for trying out a
+ *  controller started with --listen or --connect. Every command is
+ *  printed and answered with SuccessStatus, and every line typed on
+ *  standard input (for example "Sensor 1 15 7 active") is sent to the
+ *  controller as it is.
+ *
+ *  Usage: java TSim.LoopbackStub listen port
+ *         java TSim.LoopbackStub connect host port
+ *
+ */
+
+public class LoopbackStub {
+
+    public static void main(String[] args) throws IOException {
+	Socket socket;
+	if (args[0].equals("listen")) {
+	    ServerSocket server = new ServerSocket(Integer.parseInt(args[1]));
+	    socket = server.accept();
+	    server.close();
+	} else {
+	    socket = new Socket(args[1], Integer.parseInt(args[2]));
+	}
+	socket.setTcpNoDelay(true);
+	final PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+	final BufferedReader in =
+	    new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+	Thread typed = new Thread() {
+	    public void run() {
+		BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+		try {
+		    String line;
+		    while ((line = console.readLine()) != null)
+			send(out, line);
+		} catch (IOException e) {}
+	    }
+	};
+	typed.setDaemon(true);
+	typed.start();
+
+	String command;
+	while ((command = in.readLine()) != null) {
+	    System.out.println(command);
+	    send(out, "SuccessStatus");
+	}
+    }
+
+    private static void send(PrintWriter out, String line) {
+	synchronized (out) {
+	    out.println(line);
+	}
+    }
+}
@@ -0,0 +1,167 @@
+package TSim;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+import sun.misc.Unsafe;
+
+/** A single producer, single consumer queue of fixed size records kept in
+ *  a ByteBuffer, normally part of a memory mapped file so that the producer
+ *  and the consumer can be different processes.
+ *
+ *  Layout: the write sequence at offset 0 and the read sequence at offset
+ *  64 (on their own cache lines), then capacity records of RECORD_SIZE
+ *  bytes. A record is four ints: a type and three arguments. Only the
+ *  producer writes the write sequence and only the consumer writes the read
+ *  sequence, so no locking is needed.
+ *
+ *  ByteBuffer has no ordered puts, so the sequences are read and written
+ *  through Unsafe, in native byte order: a sequence is written with an
+ *  ordered (release) store after the record, and read with a volatile
+ *  (acquire) load before it. These are plain memory barriers, so they keep
+ *  the order for the other process too, on any processor.
+ *
+ *  Unsafe is the only way to get them at source level 1.5: VarHandles
+ *  came with Java 9, and the memory model says nothing about how volatile
+ *  fields or atomics order the accesses to a mapped file. It is why javac
+ *  warns about an internal API here. Its use is kept to this class, to
+ *  getSeq(), putSeq() and finding the buffer's memory, so that moving to
+ *  VarHandles later touches nothing else.
+ *
+ */
+
+public final class MappedRing {
+
+    public static final int RECORD_SIZE = 16;
+    private static final int WRITE_SEQ = 0;
+    private static final int READ_SEQ = 64;
+    private static final int HEADER_SIZE = 128;
+    private static final int SPINS = 1000;
+
+    private static final Unsafe UNSAFE;
+    private static final long ADDRESS; /* offset of Buffer.address */
+
+    static {
+	try {
+	    Field f = Unsafe.class.getDeclaredField("theUnsafe");
+	    f.setAccessible(true);
+	    UNSAFE = (Unsafe) f.get(null);
+	    ADDRESS = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+	} catch (Exception e) {
+	    throw new IllegalStateException("MappedRing needs sun.misc.Unsafe: " + e);
+	}
+    }
+
+    private final ByteBuffer buf;
+    private final int capacity;
+    private final Object base;   /* the array of a heap buffer, null if direct */
+    private final long offset;   /* of the ring in base, or its address */
+
+    /** Uses the given buffer, which must hold size(capacity) bytes
+     *  starting at its position.
+     *
+     */
+
+    public MappedRing(ByteBuffer buf, int capacity) {
+	this.buf = buf.slice();
+	this.capacity = capacity;
+	if (this.buf.hasArray()) {
+	    base = this.buf.array();
+	    offset = Unsafe.ARRAY_BYTE_BASE_OFFSET + this.buf.arrayOffset();
+	} else {
+	    base = null;
+	    offset = UNSAFE.getLong(this.buf, ADDRESS);
+	}
+    }
+
+    /** Returns the number of bytes needed for a ring of given capacity.
+     *
+     */
+
+    public static int size(int capacity) {
+	return HEADER_SIZE + capacity * RECORD_SIZE;
+    }
+
+    /** Adds a record if there is room, never blocks.
+     *
+     *  @return true if the record was added.
+     */
+
+    public boolean offer(int type, int a, int b, int c) {
+	long tail = getSeq(WRITE_SEQ);
+	if (tail - getSeq(READ_SEQ) >= capacity) {
+	    return false;
+	}
+	int offset = HEADER_SIZE + (int) (tail % capacity) * RECORD_SIZE;
+	buf.putInt(offset, type);
+	buf.putInt(offset + 4, a);
+	buf.putInt(offset + 8, b);
+	buf.putInt(offset + 12, c);
+	putSeq(WRITE_SEQ, tail + 1);
+	return true;
+    }
+
+    /** Adds a record, waiting for room if the ring is full.
+     *
+     */
+
+    public void put(int type, int a, int b, int c) {
+	for (int i = 0; !offer(type, a, b, c); i = Math.min(i + 1, 3 * SPINS)) {
+	    backOff(i);
+	}
+    }
+
+    /** Removes the oldest record into record[0..3] if there is one, never
+     *  blocks.
+     *
+     *  @return true if a record was removed.
+     */
+
+    public boolean poll(int[] record) {
+	long head = getSeq(READ_SEQ);
+	if (getSeq(WRITE_SEQ) == head) {
+	    return false;
+	}
+	int offset = HEADER_SIZE + (int) (head % capacity) * RECORD_SIZE;
+	record[0] = buf.getInt(offset);
+	record[1] = buf.getInt(offset + 4);
+	record[2] = buf.getInt(offset + 8);
+	record[3] = buf.getInt(offset + 12);
+	putSeq(READ_SEQ, head + 1);
+	return true;
+    }
+
+    /** Removes the oldest record into record[0..3], waiting for one if the
+     *  ring is empty.
+     *
+     */
+
+    public void take(int[] record) {
+	for (int i = 0; !poll(record); i = Math.min(i + 1, 3 * SPINS)) {
+	    backOff(i);
+	}
+    }
+
+    private long getSeq(int at) {
+	return UNSAFE.getLongVolatile(base, offset + at);
+    }
+
+    private void putSeq(int at, long value) {
+	UNSAFE.putOrderedLong(base, offset + at, value);
+    }
+
+    /* Spin first, the other side usually answers within microseconds,
+       then give the processor away more and more.
+    */
+
+    private static void backOff(int i) {
+	if (i < SPINS) {
+	    return;
+	} else if (i < 2 * SPINS) {
+	    Thread.yield();
+	} else {
+	    LockSupport.parkNanos(i < 3 * SPINS ? 1000 : 100000);
+	}
+    }
+}
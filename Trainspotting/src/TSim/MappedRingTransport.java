@@ -0,0 +1,146 @@
+package TSim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** A transport over a memory mapped file, for simulators running on the
+ *  same machine that want round trips in microseconds rather than the
+ *  milliseconds of a pipe. The file holds two MappedRings, one for the
+ *  commands to the simulator and one for everything coming back.
+ *
+ *  The simulator side (see Simulator) creates the file, so it must be
+ *  started first.
+ *
+ *  File layout: magic and capacity in the first 64 bytes, then the command
+ *  ring, then the event ring. The records are those of TSimProtocol.
+ *
+ */
+
+public class MappedRingTransport implements TSimTransport {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final int MAGIC = 0x54534d52;
+    private static final int FILE_HEADER = 64;
+
+    private final MappedRing commands;
+    private final MappedRing events;
+    private final int[] record = new int[4];
+
+    private MappedRingTransport(MappedRing commands, MappedRing events) {
+	this.commands = commands;
+	this.events = events;
+    }
+
+    /** Connects to the simulator that created the given file.
+     *
+     *  @throws IOException if the file has not been set up by a simulator.
+     */
+
+    public static MappedRingTransport open(File file) throws IOException {
+	MappedByteBuffer buf = map(file, 0);
+	if (buf.getInt(0) != MAGIC)
+	    throw new IOException("no simulator has set up " + file);
+	int capacity = buf.getInt(4);
+	return new MappedRingTransport(ring(buf, capacity, 0), ring(buf, capacity, 1));
+    }
+
+    private static MappedByteBuffer map(File file, int capacity) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	try {
+	    if (capacity > 0) {
+		// a fresh file, so no sequences are left from an earlier run
+		raf.setLength(0);
+		raf.setLength(FILE_HEADER + 2 * MappedRing.size(capacity));
+	    }
+	    return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+	} finally {
+	    raf.close();
+	}
+    }
+
+    private static MappedRing ring(ByteBuffer buf, int capacity, int n) {
+	ByteBuffer dup = buf.duplicate();
+	dup.position(FILE_HEADER + n * MappedRing.size(capacity));
+	return new MappedRing(dup, capacity);
+    }
+
+    public TSimInformation read() throws UnparsableInputException {
+	events.take(record);
+	switch (record[0]) {
+	case TSimProtocol.STATUS :
+	    return new CommandStatus(record[1]);
+	case TSimProtocol.SENSOR :
+	    if (record[1] < 0)
+		return new SensorEvent(-record[1], record[2], record[3], SensorEvent.INACTIVE);
+	    return new SensorEvent(record[1], record[2], record[3], SensorEvent.ACTIVE);
+	case TSimProtocol.TRAIN_EVENT :
+	    return new TrainEvent(record[1], record[2]);
+	default :
+	    throw new UnparsableInputException("unknown record type " + record[0]);
+	}
+    }
+
+    public void sendSetSpeed(int trainId, int speed) {
+	commands.put(TSimProtocol.SET_SPEED, trainId, speed, 0);
+    }
+
+    public void sendSetSwitch(int xPos, int yPos, int switchDir) {
+	commands.put(TSimProtocol.SET_SWITCH, xPos, yPos, switchDir);
+    }
+
+    /** The simulator's end of the file.
+     *
+     */
+
+    public static class Simulator {
+
+	private final MappedRing commands;
+	private final MappedRing events;
+
+	/** Creates (or truncates) the file and sets up the rings.
+	 *
+	 *  @param capacity the number of records each ring can hold.
+	 */
+
+	public Simulator(File file, int capacity) throws IOException {
+	    MappedByteBuffer buf = map(file, capacity);
+	    commands = ring(buf, capacity, 0);
+	    events = ring(buf, capacity, 1);
+	    buf.putInt(4, capacity);
+	    buf.putInt(0, MAGIC);
+	}
+
+	/** Waits for the next command, it is put into record[0..3] with
+	 *  the type (TSimProtocol.SET_SPEED or SET_SWITCH) in record[0].
+	 *
+	 */
+
+	public void takeCommand(int[] record) {
+	    commands.take(record);
+	}
+
+	/** Returns false right away if there is no command waiting.
+	 *
+	 */
+
+	public boolean pollCommand(int[] record) {
+	    return commands.poll(record);
+	}
+
+	public void sendStatus(int status) {
+	    events.put(TSimProtocol.STATUS, status, 0, 0);
+	}
+
+	public void sendSensor(int trainId, int xPos, int yPos, int status) {
+	    events.put(TSimProtocol.SENSOR, status == SensorEvent.ACTIVE ? trainId : -trainId, xPos, yPos);
+	}
+
+	public void sendTrainEvent(int trainId, int event) {
+	    events.put(TSimProtocol.TRAIN_EVENT, trainId, event, 0);
+	}
+    }
+}
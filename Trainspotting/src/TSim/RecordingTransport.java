@@ -0,0 +1,50 @@
+package TSim;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+
+/** Passes everything through to another transport and writes it to a
+ *  file as well, one line per message:
+ *
+ *    millis &lt; line    for what came from the simulator
+ *    millis &gt; line    for the commands sent to it
+ *
+ *  where millis is the time since the recording started and line is in
+ *  the text protocol. ReplayTransport plays such a file back.
+ *
+ */
+
+public class RecordingTransport implements TSimTransport {
+
+    private final TSimTransport transport;
+    private final PrintStream log;
+    private final long start = System.currentTimeMillis();
+
+    public RecordingTransport(TSimTransport transport, String fileName)
+	throws FileNotFoundException {
+	this.transport = transport;
+	this.log = new PrintStream(new FileOutputStream(fileName), true);
+    }
+
+    public TSimInformation read() throws UnparsableInputException {
+	TSimInformation info = transport.read();
+	if (info != null)
+	    record('<', TSimProtocol.format(info));
+	return info;
+    }
+
+    public void sendSetSpeed(int trainId, int speed) {
+	record('>', TSimProtocol.setSpeed(trainId, speed));
+	transport.sendSetSpeed(trainId, speed);
+    }
+
+    public void sendSetSwitch(int xPos, int yPos, int switchDir) {
+	record('>', TSimProtocol.setSwitch(xPos, yPos, switchDir));
+	transport.sendSetSwitch(xPos, yPos, switchDir);
+    }
+
+    private synchronized void record(char direction, String line) {
+	log.println((System.currentTimeMillis() - start) + " " + direction + " " + line);
+    }
+}
@@ -0,0 +1,119 @@
+package TSim;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Plays back a file written by RecordingTransport: read() returns what
+ *  the simulator sent, and the commands sent are compared with the
+ *  recorded ones. Commands that differ are counted and reported to
+ *  System.err, since from there on the replay no longer matches what the
+ *  controller does.
+ *
+ */
+
+public class ReplayTransport implements TSimTransport {
+
+    private final List<Long> times = new ArrayList<Long>();
+    private final List<String> incoming = new ArrayList<String>();
+    private final List<String> commands = new ArrayList<String>();
+    private final boolean realTime;
+    private int nextIncoming = 0;
+    private int nextCommand = 0;
+    private int mismatches = 0;
+    private long start = -1;
+
+    /** @param realTime if true the messages are delivered at the times
+     *                  they were recorded, otherwise as fast as they are
+     *                  read.
+     */
+
+    public ReplayTransport(String fileName, boolean realTime) throws IOException {
+	this.realTime = realTime;
+	BufferedReader in = new BufferedReader(new FileReader(fileName));
+	try {
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		int first = line.indexOf(' ');
+		if (first < 0)
+		    continue;
+		long time = Long.parseLong(line.substring(0, first));
+		String message = line.substring(first + 3);
+		if (line.charAt(first + 1) == '<') {
+		    times.add(time);
+		    incoming.add(message);
+		} else {
+		    commands.add(message);
+		}
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+
+    /** Returns null once the recording has been played to the end.
+     *
+     */
+
+    public TSimInformation read() throws UnparsableInputException {
+	if (nextIncoming == incoming.size())
+	    return null;
+	if (realTime) {
+	    if (start < 0)
+		start = System.currentTimeMillis();
+	    long wait = start + times.get(nextIncoming) - System.currentTimeMillis();
+	    if (wait > 0) {
+		try {
+		    Thread.sleep(wait);
+		} catch (InterruptedException e) {
+		    return null;
+		}
+	    }
+	}
+	return TSimProtocol.parse(incoming.get(nextIncoming++));
+    }
+
+    /** Returns when the message read() returns next was recorded, in
+     *  milliseconds from the start of the recording, or -1 at the end.
+     *
+     */
+
+    public long nextTime() {
+	return nextIncoming == incoming.size() ? -1 : times.get(nextIncoming);
+    }
+
+    /** Returns how many messages read() has returned so far.
+     *
+     */
+
+    public int getMessagesRead() {
+	return nextIncoming;
+    }
+
+    public void sendSetSpeed(int trainId, int speed) {
+	check(TSimProtocol.setSpeed(trainId, speed));
+    }
+
+    public void sendSetSwitch(int xPos, int yPos, int switchDir) {
+	check(TSimProtocol.setSwitch(xPos, yPos, switchDir));
+    }
+
+    private synchronized void check(String command) {
+	String expected = nextCommand < commands.size() ? commands.get(nextCommand) : null;
+	nextCommand++;
+	if (!command.equals(expected)) {
+	    mismatches++;
+	    System.err.println("replay: sent \"" + command + "\", recorded \"" + expected + "\"");
+	}
+    }
+
+    /** Returns how many commands differed from the recording so far.
+     *
+     */
+
+    public synchronized int getMismatches() {
+	return mismatches;
+    }
+}
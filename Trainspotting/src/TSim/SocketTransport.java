@@ -0,0 +1,258 @@
+package TSim;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/** The text protocol over a TCP connection, using a non-blocking NIO
+ *  channel and direct buffers. The reader and the command sender wait on
+ *  selectors of their own so they never block each other.
+ *
+ *  Sensor events and success statuses, nearly all of the traffic, are
+ *  parsed straight out of the receive buffer and commands are formatted
+ *  straight into the send buffer, without making any Strings.
+ *
+ */
+
+public class SocketTransport implements TSimTransport {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] SENSOR = bytes("Sensor");
+    private static final byte[] SUCCESS = bytes("SuccessStatus");
+    private static final byte[] SET_SPEED = bytes("SetSpeed ");
+    private static final byte[] SET_SWITCH = bytes("SetSwitch ");
+    private static final byte[] LEFT = bytes(" LeftSwitch\n");
+    private static final byte[] RIGHT = bytes(" RightSwitch\n");
+
+    private final SocketChannel channel;
+    private final Selector readSelector;
+    private final Selector writeSelector;
+    private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private int pos; // parse position within the current line
+
+    /** Uses an already connected channel, for example one accepted from
+     *  a ServerSocketChannel.
+     *
+     */
+
+    public SocketTransport(SocketChannel channel) throws IOException {
+	this.channel = channel;
+	channel.configureBlocking(false);
+	channel.socket().setTcpNoDelay(true);
+	readSelector = Selector.open();
+	writeSelector = Selector.open();
+	channel.register(readSelector, SelectionKey.OP_READ);
+	channel.register(writeSelector, SelectionKey.OP_WRITE);
+	in.flip(); // nothing read yet
+    }
+
+    /** Connects to a simulator listening on the given address.
+     *
+     */
+
+    public static SocketTransport connect(InetSocketAddress address) throws IOException {
+	return new SocketTransport(SocketChannel.open(address));
+    }
+
+    /** Waits for a simulator to connect to the given port.
+     *
+     */
+
+    public static SocketTransport listen(int port) throws IOException {
+	ServerSocketChannel server = ServerSocketChannel.open();
+	try {
+	    server.socket().setReuseAddress(true);
+	    server.socket().bind(new InetSocketAddress(port));
+	    return new SocketTransport(server.accept());
+	} finally {
+	    server.close();
+	}
+    }
+
+    /** Returns null when the simulator has closed the connection, or
+     *  the connection has been lost.
+     *
+     */
+
+    public TSimInformation read() throws UnparsableInputException {
+	try {
+	    while (true) {
+		int end = -1;
+		for (int i = in.position(); i < in.limit(); i++) {
+		    if (in.get(i) == '\n') {
+			end = i;
+			break;
+		    }
+		}
+		if (end >= 0) {
+		    int start = in.position();
+		    in.position(end + 1);
+		    TSimInformation info = parseLine(start, end);
+		    if (info != null)
+			return info;
+		} else if (!fill()) {
+		    return null;
+		}
+	    }
+	} catch (IOException e) {
+	    System.err.println("lost connection to simulator: " + e.getMessage());
+	    return null;
+	}
+    }
+
+    /* Reads more after what is left in the buffer, waiting on the selector
+       until something arrives. Returns false at end of stream.
+    */
+
+    private boolean fill() throws IOException, UnparsableInputException {
+	in.compact();
+	if (!in.hasRemaining()) {
+	    /* drop what there is of the line, the rest of it won't parse
+	       either and then reading goes on from the next line */
+	    in.clear();
+	    in.flip();
+	    throw new UnparsableInputException("line longer than " + BUFFER_SIZE + " bytes");
+	}
+	int n;
+	while ((n = channel.read(in)) == 0) {
+	    readSelector.select();
+	    readSelector.selectedKeys().clear();
+	}
+	in.flip();
+	return n > 0;
+    }
+
+    /* Returns null for an empty line. */
+
+    private TSimInformation parseLine(int start, int end) throws UnparsableInputException {
+	if (end > start && in.get(end - 1) == '\r')
+	    end--;
+	pos = start;
+	skipSpaces(end);
+	if (pos == end)
+	    return null;
+	if (wordIs(SENSOR, end)) {
+	    int id = readInt(end);
+	    int x = readInt(end);
+	    int y = readInt(end);
+	    skipSpaces(end);
+	    if (pos == end)
+		throw new UnparsableInputException("sensor status expected");
+	    return new SensorEvent(id, x, y,
+				   in.get(pos) == 'i' ? SensorEvent.INACTIVE : SensorEvent.ACTIVE);
+	}
+	if (wordIs(SUCCESS, end))
+	    return new CommandStatus(CommandStatus.OK);
+
+	// the rare messages go the slow way
+	byte[] line = new byte[end - start];
+	for (int i = 0; i < line.length; i++)
+	    line[i] = in.get(start + i);
+	return TSimProtocol.parse(new String(line));
+    }
+
+    private void skipSpaces(int end) {
+	while (pos < end && (in.get(pos) == ' ' || in.get(pos) == '\t'))
+	    pos++;
+    }
+
+    /* Consumes the word at pos if it is the given one. */
+
+    private boolean wordIs(byte[] word, int end) {
+	int after = pos + word.length;
+	if (after > end || (after < end && in.get(after) != ' ' && in.get(after) != '\t'))
+	    return false;
+	for (int i = 0; i < word.length; i++)
+	    if (in.get(pos + i) != word[i])
+		return false;
+	pos = after;
+	return true;
+    }
+
+    private int readInt(int end) throws UnparsableInputException {
+	skipSpaces(end);
+	boolean negative = pos < end && in.get(pos) == '-';
+	if (negative)
+	    pos++;
+	int from = pos;
+	int value = 0;
+	while (pos < end && in.get(pos) >= '0' && in.get(pos) <= '9')
+	    value = value * 10 + (in.get(pos++) - '0');
+	if (pos == from)
+	    throw new UnparsableInputException("int expected");
+	return negative ? -value : value;
+    }
+
+    public void sendSetSpeed(int trainId, int speed) {
+	out.clear();
+	out.put(SET_SPEED);
+	putInt(trainId);
+	out.put((byte) ' ');
+	putInt(speed);
+	out.put((byte) '\n');
+	send();
+    }
+
+    public void sendSetSwitch(int xPos, int yPos, int switchDir) {
+	out.clear();
+	out.put(SET_SWITCH);
+	putInt(xPos);
+	out.put((byte) ' ');
+	putInt(yPos);
+	out.put(switchDir == TSimInterface.SWITCH_LEFT ? LEFT : RIGHT);
+	send();
+    }
+
+    private void putInt(int value) {
+	if (value < 0) {
+	    out.put((byte) '-');
+	    value = -value;
+	}
+	int digits = 1;
+	for (int v = value / 10; v > 0; v /= 10)
+	    digits++;
+	int at = out.position() + digits;
+	for (int i = 1; i <= digits; i++) {
+	    out.put(at - i, (byte) ('0' + value % 10));
+	    value /= 10;
+	}
+	out.position(at);
+    }
+
+    private void send() {
+	out.flip();
+	try {
+	    while (out.hasRemaining()) {
+		if (channel.write(out) == 0) {
+		    writeSelector.select();
+		    writeSelector.selectedKeys().clear();
+		}
+	    }
+	} catch (IOException e) {
+	    /* the reader then ends, which fails the command waiting for
+	       its status (see TSimInterface) */
+	    System.err.println("lost connection to simulator: " + e.getMessage());
+	    close();
+	}
+    }
+
+    private void close() {
+	try {
+	    channel.close();
+	} catch (IOException e) {
+	}
+	readSelector.wakeup();
+    }
+
+    private static byte[] bytes(String s) {
+	byte[] b = new byte[s.length()];
+	for (int i = 0; i < b.length; i++)
+	    b[i] = (byte) s.charAt(i);
+	return b;
+    }
+}
@@ -0,0 +1,37 @@
+package TSim;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/** The text protocol of the stock tsim, over a pair of streams. By default
+ *  these are System.in and System.out, which tsim connects to its own
+ *  output and input.
+ *
+ */
+
+public class StdioTransport implements TSimTransport {
+
+    private final TSimStream in;
+    private final PrintStream out;
+
+    public StdioTransport() {
+	this(System.in, System.out);
+    }
+
+    public StdioTransport(InputStream in, PrintStream out) {
+	this.in = new TSimStream(in);
+	this.out = out;
+    }
+
+    public TSimInformation read() throws UnparsableInputException {
+	return in.read();
+    }
+
+    public void sendSetSpeed(int trainId, int speed) {
+	out.println(TSimProtocol.setSpeed(trainId, speed));
+    }
+
+    public void sendSetSwitch(int xPos, int yPos, int switchDir) {
+	out.println(TSimProtocol.setSwitch(xPos, yPos, switchDir));
+    }
+}
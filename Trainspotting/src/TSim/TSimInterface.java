@@ -1,6 +1,10 @@
 package TSim;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /** The TSimInterface is the intended interface between TSim and the 
@@ -15,6 +19,13 @@ public final class TSimInterface {
     public static final int SWITCH_RIGHT = 0x02;
 
     private static TSimInterface tsim;
+
+    /* put in the sensor queue of a train that has had an error event */
+    private static final SensorEvent CRASHED = new SensorEvent(0, 0, 0, 0);
+
+    /* put in the command queue when the transport has no more messages,
+       so that a command waiting for its status fails instead */
+    private static final CommandStatus LOST = new CommandStatus(0);
     
     /* We maintain one buffer (commandFIFO) of command replies from tsim
      * and one buffer of sensor events for each train (sensorVec(trainId)).
@@ -32,16 +43,85 @@ public final class TSimInterface {
     private AddingArrayList<TrainErrorEvent> trainVec = 
 	new AddingArrayList<TrainErrorEvent>();
 
-    private TSimStream sTSim;
+    private TSimTransport transport;
     private boolean debug = false;
 
+    /* the speed tsim last accepted for each train, so that the same speed
+     * isn't sent again, see setSpeed()
+     */
+    private AddingArrayList<SpeedShadow> speedShadows =
+	new AddingArrayList<SpeedShadow>();
+    private volatile boolean shadowing = true;
+    private final AtomicLong speedCommandsSent = new AtomicLong();
+    private final AtomicLong speedCommandsDropped = new AtomicLong();
+    private final AtomicLong speedCommandsCoalesced = new AtomicLong();
+
+
+    /** Create a new TSimInterface talking through the given transport
+     *  and start reading from it in a separate thread.
+     *
+     */
+
+    public TSimInterface(TSimTransport transport) {
+	this.transport = transport;
+	Thread reader = new Thread(new Runnable() {
+		public void run() {
+		    readLoop();
+		}
+	    });
+	reader.setDaemon(true);
+	reader.start();
+    }
+
+    /** Makes the single instance use the given transport. Must be called
+     *  before the first call to getInstance().
+     *
+     *  @throws IllegalStateException if the instance already exists.
+     */
+
+    public static synchronized TSimInterface init(TSimTransport transport) {
+	if (tsim != null)
+	    throw new IllegalStateException("TSimInterface already created");
+	tsim = new TSimInterface(transport);
+	return tsim;
+    }
 
-    /** Create a new TSimInterface
+    /** The transport is chosen by the system property tsim.transport:
+     *  "stdio" (the default) talks text with the stock tsim over
+     *  System.in/System.out, "mmap:file" uses the MappedRingTransport
+     *  set up in file by a simulator on the same machine, "tcp:host:port"
+     *  connects to a simulator over TCP and "replay:file" plays back a
+     *  recording. If tsim.record is set to a file name everything is also
+     *  recorded there (see RecordingTransport).
      *
      */
 
-    private TSimInterface() {
-	sTSim = new TSimStream(System.in);
+    private static TSimTransport defaultTransport() {
+	String spec = System.getProperty("tsim.transport", "stdio");
+	TSimTransport transport;
+	try {
+	    if (spec.startsWith("mmap:"))
+		transport = MappedRingTransport.open(new File(spec.substring(5)));
+	    else if (spec.startsWith("tcp:")) {
+		int colon = spec.lastIndexOf(':');
+		transport = SocketTransport.connect(new InetSocketAddress(
+			spec.substring(4, colon), Integer.parseInt(spec.substring(colon + 1))));
+	    }
+	    else if (spec.startsWith("replay:"))
+		transport = new ReplayTransport(spec.substring(7), false);
+	    else if (spec.equals("stdio"))
+		transport = new StdioTransport();
+	    else
+		throw new IllegalArgumentException("unknown transport " + spec);
+
+	    String record = System.getProperty("tsim.record");
+	    if (record != null)
+		transport = new RecordingTransport(transport, record);
+	} catch (IOException e) {
+	    throw new IllegalStateException("can't open transport " + spec +
+					    ": " + e.getMessage());
+	}
+	return transport;
     }
     
    /** Returns the single instance (singleton pattern).
@@ -50,19 +130,14 @@ public final class TSimInterface {
      *
      */
     public static synchronized TSimInterface getInstance() {
-	if (tsim == null) {
-	    tsim = new TSimInterface();
-	    new Thread(new Runnable() {
-		    public void run() {
-			tsim.readLoop();
-		    }
-		}).start();
-	}
+	if (tsim == null)
+	    tsim = new TSimInterface(defaultTransport());
 	
 	return tsim;
     }
     
     /** Repeatedly reads messages from tsim; runs in a separate thread.
+     *  Stops when the transport has no more messages.
      */
 
     private void readLoop() 
@@ -70,15 +145,30 @@ public final class TSimInterface {
 	while (true) {
 	    
 	    try {
-		TSimInformation dInfo = sTSim.read();
+		TSimInformation dInfo = transport.read();
+
+		if (dInfo == null) {
+		    commandFIFO.offer(LOST);
+		    return;
+		}
 
 		if (debug) System.err.println("     " + dInfo);
 		
 		if (dInfo instanceof CommandStatus) 
 		    commandFIFO.offer((CommandStatus)dInfo);
 		
-		else if (dInfo instanceof TrainErrorEvent) {
-		    TrainErrorEvent tEvent = (TrainErrorEvent) dInfo;
+		else if (dInfo instanceof TrainErrorEvent 
+			 || dInfo instanceof TrainEvent) {
+		    /* the parsers (TSimStream, TSimProtocol and
+		       MappedRingTransport) give TrainEvents, only
+		       HeadlessTSim sends TrainErrorEvents */
+		    TrainErrorEvent tEvent;
+		    if (dInfo instanceof TrainEvent) {
+			TrainEvent e = (TrainEvent) dInfo;
+			tEvent = new TrainErrorEvent(e.getTrainId(), e.getEvent());
+		    }
+		    else
+			tEvent = (TrainErrorEvent) dInfo;
 		    int trainId = tEvent.getTrainId();
 		    /* Store the error event to make future commands 
 		       concerning this train result in an exception.
@@ -86,6 +176,8 @@ public final class TSimInterface {
 		    
 		    trainVec.set(trainId, tEvent);
 		    reportTrainErrorEvent(tEvent);
+		    /* wake up a getSensor() waiting for the train */
+		    getSensorEventQueue(trainId).put(CRASHED);
 		}
 
 		else if (dInfo instanceof SensorEvent) {
@@ -127,7 +219,10 @@ public final class TSimInterface {
 
 
 
-    /** Sets the speed of a train.
+    /** Sets the speed of a train. The command is not sent if tsim has
+     *  already accepted the same speed for the train, or if another thread
+     *  has asked for a newer speed for the train while this one waited for
+     *  its turn; the newer speed is sent instead.
      *
      *  @param trainId  the id of the train to be affected by the command.
      *  @param speed    the new speed of the train.
@@ -137,24 +232,73 @@ public final class TSimInterface {
      *
      */
 
-    public synchronized void setSpeed(int trainId, int speed)
+    public void setSpeed(int trainId, int speed)
 	throws CommandException {
-	TrainErrorEvent tEvent = trainVec.get(trainId);
-	
-	/* some event has happened for this train i.e. it has crashed */
-	
-	if (tEvent != null)
-	    throw new CommandException(tEvent.toString());
-        String output ="SetSpeed " + trainId + " " + speed;
-	System.out.println(output);
-	if (debug) System.err.print(output);
+	SpeedShadow shadow = getSpeedShadow(trainId);
+	long ticket = shadow.newest.incrementAndGet();
+	synchronized (this) {
+	    TrainErrorEvent tEvent = trainVec.get(trainId);
+
+	    /* some event has happened for this train i.e. it has crashed */
+
+	    if (tEvent != null)
+		throw new CommandException(tEvent.toString());
+	    if (shadowing && ticket != shadow.newest.get()) {
+		speedCommandsCoalesced.incrementAndGet();
+		return;
+	    }
+	    if (shadowing && shadow.sent == speed) {
+		speedCommandsDropped.incrementAndGet();
+		return;
+	    }
+	    shadow.sent = SpeedShadow.UNKNOWN;
+	    transport.sendSetSpeed(trainId, speed);
+	    speedCommandsSent.incrementAndGet();
+	    if (debug) System.err.print("SetSpeed " + trainId + " " + speed);
 
-	try {
-	    CommandStatus cStat = commandFIFO.take();
-	    if (cStat.getStatus() != CommandStatus.OK)
-		throw new CommandException(cStat.toString());
-	} catch (InterruptedException e) {}
+	    try {
+		awaitStatus();
+		shadow.sent = speed;
+	    } catch (InterruptedException e) {}
+	}
+    }
+
+    /** Turns on and off leaving out speed commands that wouldn't change
+     *  anything. Must be off if something else may set the speed of the
+     *  trains too.
+     */
 
+    public void setShadowing(boolean shadowing) {this.shadowing = shadowing;}
+
+    /** The number of speed commands sent to tsim */
+    public long getSpeedCommandsSent() {return speedCommandsSent.get();}
+
+    /** The number of speed commands left out since the train already had
+     *  that speed */
+    public long getSpeedCommandsDropped() {return speedCommandsDropped.get();}
+
+    /** The number of speed commands left out since a newer one for the
+     *  same train was waiting */
+    public long getSpeedCommandsCoalesced() {return speedCommandsCoalesced.get();}
+
+    private SpeedShadow getSpeedShadow(int trainId) {
+	synchronized (speedShadows) {
+	    SpeedShadow shadow = speedShadows.get(trainId);
+	    if (shadow == null) {
+		shadow = new SpeedShadow();
+		speedShadows.set(trainId, shadow);
+	    }
+	    return shadow;
+	}
+    }
+
+    /* What is known about the speed of one train. sent is only used while
+     * holding the lock of the TSimInterface.
+     */
+    private static class SpeedShadow {
+	static final int UNKNOWN = Integer.MIN_VALUE;
+	int sent = UNKNOWN;
+	final AtomicLong newest = new AtomicLong();
     }
 
     /** Sets the direction of the specified switch. Valid directions are
@@ -174,19 +318,29 @@ public final class TSimInterface {
     public synchronized void setSwitch(int xPos, int yPos, int switchDir)
 	throws CommandException {
 	
-	String output  ="SetSwitch " + xPos + " " + yPos + 
-	                (switchDir == SWITCH_LEFT ? " LeftSwitch" : " RightSwitch");
-	System.out.println(output);
-	if (debug) System.err.print(output);
+	transport.sendSetSwitch(xPos, yPos, switchDir);
+	if (debug) System.err.print("SetSwitch " + xPos + " " + yPos + 
+	                (switchDir == SWITCH_LEFT ? " LeftSwitch" : " RightSwitch"));
 	
 	try {
-	    CommandStatus cStat = commandFIFO.take();
-	    if (cStat.getStatus() != CommandStatus.OK)
-		throw new CommandException(cStat.toString());
+	    awaitStatus();
 	} catch (InterruptedException e) {}
 	
     }
 
+    /* Waits for the status of the command just sent. */
+
+    private void awaitStatus() throws CommandException, InterruptedException {
+	CommandStatus cStat = commandFIFO.take();
+	if (cStat == LOST) {
+	    /* leave it for the commands after this one */
+	    commandFIFO.offer(LOST);
+	    throw new CommandException("lost the connection to the simulator");
+	}
+	if (cStat.getStatus() != CommandStatus.OK)
+	    throw new CommandException(cStat.toString());
+    }
+
     
     /** Blocks the calling thread until the specified train passes a sensor.
      *
@@ -206,7 +360,10 @@ public final class TSimInterface {
 	if (tEvent != null)
 	    throw new CommandException(tEvent.toString());
 
-	return getSensorEventQueue(trainId).take();
+	SensorEvent event = getSensorEventQueue(trainId).take();
+	if (event == CRASHED)
+	    throw new CommandException(trainVec.get(trainId).toString());
+	return event;
     }
 
 }
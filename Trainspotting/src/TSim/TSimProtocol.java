@@ -0,0 +1,126 @@
+package TSim;
+
+/** The text protocol spoken by the stock tsim, one message per line.
+ *  Used by the transports that carry text and by the tools that record
+ *  and replay it.
+ *
+ */
+
+public final class TSimProtocol {
+
+    /* The same messages as records of four ints, a type and three
+       arguments, for the transports that don't carry text
+       (MappedRingTransport and InMemoryTransport):
+
+         SET_SPEED   trainId speed
+         SET_SWITCH  x y switchDir
+         STATUS      status (CommandStatus)
+         SENSOR      trainId x y, negative trainId for inactive
+         TRAIN_EVENT trainId event (TrainEvent)
+    */
+    public static final int SET_SPEED   = 1;
+    public static final int SET_SWITCH  = 2;
+    public static final int STATUS      = 3;
+    public static final int SENSOR      = 4;
+    public static final int TRAIN_EVENT = 5;
+
+    private static final String[] STATUS_NAMES = {
+	null,
+	"SuccessStatus",            // CommandStatus.OK
+	"IllegalReverseStatus",     // CommandStatus.ILLEGAL_SPEED
+	"IllegalTrainNoStatus",     // CommandStatus.NO_SUCH_TRAIN
+	"NoSwitchStatus",           // CommandStatus.NO_SUCH_SWITCH
+	"IllegalRailPosStatus",     // CommandStatus.NO_SUCH_POS
+	"IllegalSwitchingStatus"    // CommandStatus.TRAIN_ON_SWITCH
+    };
+
+    private static final String[] EVENT_NAMES = {
+	null,
+	"TrainCollisionEvent",      // TrainEvent.TRAIN_COLLISION
+	"StopCollisionEvent",       // TrainEvent.STOP_COLLISION
+	"DerailmentEvent"           // TrainEvent.DERAILMENT
+    };
+
+    private TSimProtocol() {
+    }
+
+    public static String setSpeed(int trainId, int speed) {
+	return "SetSpeed " + trainId + " " + speed;
+    }
+
+    public static String setSwitch(int xPos, int yPos, int switchDir) {
+	return "SetSwitch " + xPos + " " + yPos +
+	    (switchDir == TSimInterface.SWITCH_LEFT ? " LeftSwitch" : " RightSwitch");
+    }
+
+    /** Returns the CommandStatus with the given name, or null if the word
+     *  is not the name of a status.
+     *
+     */
+
+    public static CommandStatus status(String word) {
+	for (int i = 1; i < STATUS_NAMES.length; i++)
+	    if (STATUS_NAMES[i].equals(word))
+		return new CommandStatus(i);
+	return null;
+    }
+
+    /** Returns the TrainEvent type with the given name, or -1.
+     *
+     */
+
+    public static int trainEvent(String word) {
+	for (int i = 1; i < EVENT_NAMES.length; i++)
+	    if (EVENT_NAMES[i].equals(word))
+		return i;
+	return -1;
+    }
+
+    /** Parses one line of tsim output.
+     *
+     *  @throws UnparsableInputException if the line is not a message.
+     */
+
+    public static TSimInformation parse(String line) throws UnparsableInputException {
+	String[] tokens = line.trim().split("\\s+");
+	try {
+	    CommandStatus status = status(tokens[0]);
+	    if (status != null)
+		return status;
+	    if (tokens[0].equals("Sensor"))
+		return new SensorEvent(Integer.parseInt(tokens[1]),
+				       Integer.parseInt(tokens[2]),
+				       Integer.parseInt(tokens[3]),
+				       tokens[4].equals("inactive") ?
+				       SensorEvent.INACTIVE : SensorEvent.ACTIVE);
+	    int event = trainEvent(tokens[0]);
+	    if (event > 0)
+		return new TrainEvent(Integer.parseInt(tokens[1]), event);
+	} catch (NumberFormatException e) {
+	    throw new UnparsableInputException("bad number in: " + line);
+	} catch (ArrayIndexOutOfBoundsException e) {
+	    throw new UnparsableInputException("too short: " + line);
+	}
+	throw new UnparsableInputException("unknown information from tsim: " + line);
+    }
+
+    /** Formats a message the way tsim sends it, the inverse of parse().
+     *
+     */
+
+    public static String format(TSimInformation info) {
+	if (info instanceof CommandStatus)
+	    return STATUS_NAMES[((CommandStatus) info).getStatus()];
+	if (info instanceof SensorEvent) {
+	    SensorEvent e = (SensorEvent) info;
+	    return "Sensor " + e.getTrainId() + " " + e.getXpos() + " " + e.getYpos() +
+		(e.getStatus() == SensorEvent.ACTIVE ? " active" : " inactive");
+	}
+	if (info instanceof TrainEvent) {
+	    TrainEvent e = (TrainEvent) info;
+	    return EVENT_NAMES[e.getEvent()] + " " + e.getTrainId();
+	}
+	TrainErrorEvent e = (TrainErrorEvent) info;
+	return EVENT_NAMES[e.getEvent()] + " " + e.getTrainId();
+    }
+}
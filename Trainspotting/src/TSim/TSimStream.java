@@ -34,21 +34,12 @@ public class TSimStream {
     public TSimInformation read() throws UnparsableInputException {
 	String cmd = readString(sTokenizer);
 	
-	TSimInformation info = null;
+	TSimInformation info = TSimProtocol.status(cmd);
 
-	if (cmd.equals("SuccessStatus"))
-	    info = new CommandStatus(CommandStatus.OK);
-	else if (cmd.equals("NoSwitchStatus"))
-	    info = new CommandStatus(CommandStatus.NO_SUCH_SWITCH);
-	else if (cmd.equals("IllegalTrainNoStatus"))
-	    info = new CommandStatus(CommandStatus.NO_SUCH_TRAIN);
-	else if (cmd.equals("IllegalReverseStatus"))
-	    info = new CommandStatus(CommandStatus.ILLEGAL_SPEED);
-	else if (cmd.equals("IllegalRailPosStatus"))
-	    info = new CommandStatus(CommandStatus.NO_SUCH_POS);
-	else if (cmd.equals("IllegalSwitchingStatus"))
-	    info = new CommandStatus(CommandStatus.TRAIN_ON_SWITCH);
-	else if (cmd.equals("Sensor")) {
+	if (info != null)
+	    return info; // a command status
+
+	if (cmd.equals("Sensor")) {
 	    
 	    int id   = readInt(sTokenizer);
 	    int xPos = readInt(sTokenizer);
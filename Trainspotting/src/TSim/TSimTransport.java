@@ -0,0 +1,31 @@
+package TSim;
+
+/** The connection between TSimInterface and the simulator. TSimInterface
+ *  only ever has one reader thread and serializes the commands, so
+ *  implementations don't need to be thread safe beyond that.
+ *
+ */
+
+public interface TSimTransport {
+
+    /** Blocks until the next message from the simulator arrives.
+     *
+     *  @return the next message from the simulator.
+     *  @throws UnparsableInputException if the message could not be read.
+     */
+
+    public TSimInformation read() throws UnparsableInputException;
+
+    /** Sends a SetSpeed command, the status comes back through read().
+     *
+     */
+
+    public void sendSetSpeed(int trainId, int speed);
+
+    /** Sends a SetSwitch command, the status comes back through read().
+     *
+     *  @param switchDir TSimInterface.SWITCH_LEFT or SWITCH_RIGHT.
+     */
+
+    public void sendSetSwitch(int xPos, int yPos, int switchDir);
+}
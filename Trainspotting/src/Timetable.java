@@ -0,0 +1,85 @@
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+/**
+ * The stations every train should visit, in order, over and over.
+ *
+ * One stop per line: the train, the cell of the station and optionally how
+ * many seconds the train waits there. Lines starting with # are comments.
+ *
+ *     # train x y [wait]
+ *     1 15 4
+ *     1 15 12 5
+ *
+ * The trains of this solution only ever stop at the end of a line, so a
+ * station is served by the ends of lines within STATION_RADIUS cells of it.
+ */
+public class Timetable {
+
+    /**
+     * How far from a station an end of a line may be to serve it
+     */
+    public static final int STATION_RADIUS = 3;
+    private final Map<Integer, List<Stop>> stops = new HashMap<Integer, List<Stop>>();
+
+    public Timetable(File file) throws FileNotFoundException {
+        Scanner sc = new Scanner(file);
+        while (sc.hasNextLine()) {
+            String line = sc.nextLine().trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] sline = line.split("\\s+");
+            int train = Integer.parseInt(sline[0]);
+            Point station = new Point(Integer.parseInt(sline[1]), Integer.parseInt(sline[2]));
+            double wait = sline.length > 3 ? Double.parseDouble(sline[3]) : 0;
+            if (!stops.containsKey(train)) {
+                stops.put(train, new ArrayList<Stop>());
+            }
+            stops.get(train).add(new Stop(station, wait));
+        }
+        sc.close();
+    }
+
+    /**
+     * @return the stops of the train in order, empty if it has none
+     */
+    public List<Stop> getStops(int trainId) {
+        List<Stop> ret = stops.get(trainId);
+        return ret == null ? Collections.<Stop>emptyList() : ret;
+    }
+
+    /**
+     * @return true if the end of a line at end serves the station
+     */
+    public static boolean serves(Point end, Point station) {
+        return Math.abs(end.x - station.x) <= STATION_RADIUS
+                && Math.abs(end.y - station.y) <= STATION_RADIUS;
+    }
+
+    public static class Stop {
+
+        public final Point station;
+        /**
+         * Seconds to wait at the station
+         */
+        public final double wait;
+
+        Stop(Point station, double wait) {
+            this.station = station;
+            this.wait = wait;
+        }
+
+        @Override
+        public String toString() {
+            return "station " + station;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Plans the trains' way from station to station of the timetable, one leg
+ * at a time, over a TrackGraph in time: the semaphores every step takes are
+ * booked in a ReservationTable for the time the train is going to hold
+ * them, and a train waits at a sensor rather than plan to meet another
+ * train. The train plans its next leg when it turns around at a station,
+ * and plans again if it is found anywhere but on its plan.
+ *
+ * The trains follow the plan by waiting at the sensors until the planned
+ * time and by trying the planned way at switches first (see Train and
+ * Sensor). The semaphores still keep the trains apart, a train that is late
+ * just waits for them as before.
+ *
+ * Times are TrainPhysics.now(), in seconds.
+ */
+public class TimetablePlanner {
+
+    /**
+     * A train that is less early than this many seconds doesn't stop to wait
+     */
+    public static final double HOLD_SLACK = 1;
+    private final TrackGraph graph;
+    private final Timetable timetable;
+    private final ReservationTable reservations = new ReservationTable();
+    private final Map<Integer, Plan> plans = new HashMap<Integer, Plan>();
+
+    public TimetablePlanner(RailMap map, Timetable timetable) {
+        this.graph = new TrackGraph(map);
+        this.timetable = timetable;
+    }
+
+    /**
+     * The train hits a sensor: follow its plan, or make a new one if it
+     * has none, has left it or has come to the station at its end
+     *
+     * @param speed the speed the train drives at
+     * @return when the train should go on from the sensor, NaN if it
+     *         should go on at once
+     */
+    public synchronized double arrive(int trainId, int speed, Point sensor, int dir) {
+        List<Timetable.Stop> stops = timetable.getStops(trainId);
+        TrackGraph.Node node = graph.getNode(sensor, dir);
+        if (stops.isEmpty() || node == null) {
+            return Double.NaN;
+        }
+        Plan plan = plans.get(trainId);
+        if (plan == null) {
+            plan = new Plan();
+            plans.put(trainId, plan);
+        }
+        double now = TrainPhysics.now();
+        int i = plan.find(node);
+        if (i < 0) {
+            if (plan.steps.size() > 0) {
+                Metrics.increment("timetable replans");
+            }
+            if (!planLeg(trainId, plan, node, now, speed, stops)) {
+                return Double.NaN;
+            }
+            i = 0;
+        }
+        plan.index = i;
+        Step step = plan.steps.get(i);
+        if (step.edge != null) {
+            return step.depart;
+        }
+        // at the station, the train turns around here
+        Timetable.Stop stop = stops.get(plan.stop);
+        plan.stop = (plan.stop + 1) % stops.size();
+        Metrics.increment("timetable stops");
+        TrackGraph.Node back = graph.getNode(sensor, (dir + 2) % 4);
+        if (back != null) {
+            planLeg(trainId, plan, back, now + turnAroundTime(speed) + stop.wait, speed, stops);
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * The train may ask at a sensor that isn't a node of the graph in the
+     * direction it reports (on a curve), so the next switch of the plan is
+     * looked for from the step it was last found at.
+     *
+     * @return the direction the train's plan leaves the switch in, -1 if the
+     *         plan doesn't pass it from there next
+     */
+    public synchronized int advise(int trainId, Point switchPos, int dirIn) {
+        Plan plan = plans.get(trainId);
+        if (plan == null) {
+            return -1;
+        }
+        for (int i = plan.index; i < plan.steps.size(); i++) {
+            TrackGraph.Edge e = plan.steps.get(i).edge;
+            if (e != null && e.switchPos != null) {
+                return switchPos.equals(e.switchPos) && e.switchIn == dirIn ? e.switchOut : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Plan from the node to the station of the train's current stop and
+     * book the way, replacing the train's old plan
+     *
+     * @return false if there is no way, the stop is then skipped
+     */
+    private boolean planLeg(int trainId, Plan plan, TrackGraph.Node from, double start,
+            int speed, List<Timetable.Stop> stops) {
+        Point station = stops.get(plan.stop).station;
+        List<Step> steps = search(trainId, from, start, speed, station);
+        reservations.releaseAll(trainId);
+        plan.steps.clear();
+        plan.index = 0;
+        if (steps == null) {
+            System.err.println("¤¤¤¤¤¤¤¤¤¤¤¤¤ train " + trainId + " can't get to "
+                    + stops.get(plan.stop) + " from " + from + " ¤¤¤¤¤¤¤¤¤¤¤¤¤");
+            plan.stop = (plan.stop + 1) % stops.size();
+            return false;
+        }
+        plan.steps.addAll(steps);
+        book(trainId, steps, speed);
+        return true;
+    }
+
+    /**
+     * Earliest arrival search over nodes and time: a step leaves as soon as
+     * the semaphores it takes are free for long enough, if the train may
+     * wait that long on the segment it is on.
+     *
+     * @return the steps to a node at the end of a line serving the station,
+     *         the last one without an edge, null if there is none
+     */
+    private List<Step> search(int trainId, TrackGraph.Node from, double start, int speed,
+            Point station) {
+        double cellsPerSecond = TrainPhysics.cellsPerSecond(speed);
+        double clear = clearTime(speed);
+        Map<TrackGraph.Node, Label> best = new HashMap<TrackGraph.Node, Label>();
+        PriorityQueue<Label> queue = new PriorityQueue<Label>();
+        Label first = new Label(from, start, null, null, start);
+        best.put(from, first);
+        queue.add(first);
+        while (!queue.isEmpty()) {
+            Label l = queue.poll();
+            if (best.get(l.node) != l) {
+                continue; // a better way has been found since
+            }
+            if (l.node.end != null && Timetable.serves(l.node.end, station)) {
+                return steps(l);
+            }
+            for (TrackGraph.Edge e : l.node.edges) {
+                double travel = e.turnAround ? turnAroundTime(speed) : e.distance / cellsPerSecond;
+                double depart = earliestDeparture(trainId, l, e, travel + clear);
+                if (Double.isNaN(depart)) {
+                    continue;
+                }
+                Label old = best.get(e.to);
+                if (old == null || depart + travel < old.arrival) {
+                    Label next = new Label(e.to, depart + travel, l, e, depart);
+                    best.put(e.to, next);
+                    queue.add(next);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return NaN if the train would have to wait for so long that it holds
+     *         up someone else on its own segment
+     */
+    private double earliestDeparture(int trainId, Label l, TrackGraph.Edge e, double length) {
+        double depart = l.arrival;
+        double moved;
+        do {
+            moved = depart;
+            if (e.segment != null) {
+                depart = reservations.firstFree(e.segment, depart, length, trainId);
+            }
+            if (e.crossing != null) {
+                depart = reservations.firstFree(e.crossing, depart, length, trainId);
+            }
+        } while (depart != moved);
+        TrackLock current = null;
+        for (Label at = l; at.via != null && current == null; at = at.prev) {
+            current = at.via.segment;
+        }
+        if (depart > l.arrival && current != null
+                && !reservations.isFree(current, l.arrival, depart, trainId)) {
+            return Double.NaN;
+        }
+        return depart;
+    }
+
+    private List<Step> steps(Label last) {
+        List<Step> steps = new ArrayList<Step>();
+        steps.add(new Step(last.node, null, Double.NaN, last.arrival));
+        for (Label l = last; l.prev != null; l = l.prev) {
+            steps.add(new Step(l.prev.node, l.via, l.depart, l.prev.arrival));
+        }
+        Collections.reverse(steps);
+        return steps;
+    }
+
+    /**
+     * A segment is booked from when the train takes it until it takes the
+     * next one (or has turned around at the end of the leg), a crossing
+     * until the train has reached the sensor after it.
+     */
+    private void book(int trainId, List<Step> steps, int speed) {
+        double clear = clearTime(speed);
+        Step last = steps.get(steps.size() - 1);
+        for (int i = 0; i + 1 < steps.size(); i++) {
+            Step step = steps.get(i);
+            Step next = steps.get(i + 1);
+            if (step.edge.segment != null) {
+                double leave = last.arrival + turnAroundTime(speed);
+                for (int j = i + 1; j + 1 < steps.size(); j++) {
+                    if (steps.get(j).edge.segment != null) {
+                        leave = steps.get(j).depart;
+                        break;
+                    }
+                }
+                reservations.reserve(step.edge.segment, step.depart, leave + clear, trainId);
+            }
+            if (step.edge.crossing != null) {
+                reservations.reserve(step.edge.crossing, step.depart, next.arrival + clear, trainId);
+            }
+        }
+    }
+
+    /**
+     * Seconds for the train to get its end past a sensor and stop
+     */
+    private static double clearTime(int speed) {
+        return (TrainPhysics.stoppingDistance(speed) + 1 + TrainPhysics.TRAIN_LENGTH)
+                / TrainPhysics.cellsPerSecond(speed);
+    }
+
+    /**
+     * Seconds to turn around at the end of a line: brake down to 1, crawl
+     * the rest of the way off the sensor, wait (see Train) and roll back
+     * onto it. The train gets part of its length off the sensor while
+     * braking, so it doesn't crawl all of it.
+     */
+    private static double turnAroundTime(int speed) {
+        // cells/s^2, the same for braking and speeding up
+        double rate = TrainPhysics.DECELERATION * TrainPhysics.CELLS_PER_SECOND
+                * TrainPhysics.CELLS_PER_SECOND;
+        double braking = (speed * speed - 1) / (2 * TrainPhysics.DECELERATION);
+        double crawl = Math.max(0, TrainPhysics.TRAIN_LENGTH - braking);
+        return (TrainPhysics.cellsPerSecond(speed) - TrainPhysics.cellsPerSecond(1)) / rate
+                + crawl / TrainPhysics.cellsPerSecond(1)
+                + Train.TURN_AROUND_MILLIS / 1000.0
+                + Math.sqrt(2 / rate);
+    }
+
+    /**
+     * What a train is doing: the steps of its current leg, the one it is
+     * at, and which of its stops it is heading for
+     */
+    private static class Plan {
+
+        final List<Step> steps = new ArrayList<Step>();
+        int index;
+        int stop;
+
+        /**
+         * @return where the node is in the rest of the plan, -1 if it isn't
+         */
+        int find(TrackGraph.Node node) {
+            for (int i = index; i < steps.size(); i++) {
+                if (steps.get(i).node == node) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Be at a node at arrival and go on along edge at depart
+     */
+    private static class Step {
+
+        final TrackGraph.Node node;
+        final TrackGraph.Edge edge;
+        final double depart;
+        final double arrival;
+
+        Step(TrackGraph.Node node, TrackGraph.Edge edge, double depart, double arrival) {
+            this.node = node;
+            this.edge = edge;
+            this.depart = depart;
+            this.arrival = arrival;
+        }
+    }
+
+    private static class Label implements Comparable<Label> {
+
+        final TrackGraph.Node node;
+        final double arrival;
+        final Label prev;
+        final TrackGraph.Edge via;
+        final double depart; // from prev
+
+        Label(TrackGraph.Node node, double arrival, Label prev, TrackGraph.Edge via, double depart) {
+            this.node = node;
+            this.arrival = arrival;
+            this.prev = prev;
+            this.via = via;
+            this.depart = depart;
+        }
+
+        public int compareTo(Label o) {
+            return Double.compare(arrival, o.arrival);
+        }
+    }
+}
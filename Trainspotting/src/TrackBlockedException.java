@@ -0,0 +1,14 @@
+
+/**
+ * Thrown by TrackLock.acquire() when the track is blocked by a wrecked
+ * train, either when the call is made or while waiting. The track will not
+ * become free, so the train has to find another way.
+ */
+public class TrackBlockedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TrackBlockedException(String lock) {
+        super(lock + " is blocked");
+    }
+}
@@ -0,0 +1,171 @@
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The map as the trains see it: a node for every sensor and direction a
+ * train can come to it in, and an edge for every way to the next sensor. An
+ * edge past a switch knows which way the switch must be set, and every edge
+ * knows the semaphores a train takes on it, the same ones Sensor takes.
+ * A sensor before the end of a line has an edge back to itself in the other
+ * direction, the train turns around there.
+ *
+ * Built from one snapshot of the map, it doesn't follow map changes.
+ */
+public class TrackGraph {
+
+    private final Map<Point, Node[]> nodes = new HashMap<Point, Node[]>();
+
+    public TrackGraph(RailMap map) {
+        for (Point p : map.getSensors()) {
+            Node[] byDir = new Node[4];
+            for (int dir = 0; dir < 4; dir++) {
+                // the direction the train moves in, so it comes from behind
+                if (map.canMoveInDirection(p, (dir + 2) % 4)) {
+                    byDir[dir] = new Node(p, dir);
+                }
+            }
+            nodes.put(p, byDir);
+        }
+        for (Node[] byDir : nodes.values()) {
+            for (Node n : byDir) {
+                if (n != null) {
+                    addEdges(map, n);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the node of a train hitting the sensor at p moving in dir,
+     *         null if there is none
+     */
+    public Node getNode(Point p, int dir) {
+        Node[] byDir = nodes.get(p);
+        return byDir == null || dir < 0 ? null : byDir[dir];
+    }
+
+    public Collection<Node[]> getNodes() {
+        return nodes.values();
+    }
+
+    private void addEdges(RailMap map, Node n) {
+        SearchResult next = map.getNextSensor(n.pos, n.dir);
+        if (next == null) {
+            SearchResult end = map.getNextSwitchOrEnd(n.pos, n.dir);
+            n.end = end == null ? null : end.pos;
+            Node back = getNode(n.pos, (n.dir + 2) % 4);
+            if (back != null) {
+                n.edges.add(new Edge(back, 0, null, -1, -1, true));
+            }
+            return;
+        }
+        SearchResult sw = map.getNextSwitch(n.pos, n.dir);
+        if (sw == null || sw.distance > next.distance) {
+            // still on the same segment, only a crossing can be in the way
+            Edge e = new Edge(getNode(next.pos, next.direction), next.distance, null, -1, -1, false);
+            addCrossing(map, e, n.pos, n.dir, next.distance);
+            add(n, e);
+            return;
+        }
+        int alternative = map.otherSwitchDirection(sw.pos, sw.direction);
+        int straight = map.canMoveInDirection(sw.pos, sw.direction) ? sw.direction : alternative;
+        Edge e = new Edge(getNode(next.pos, next.direction), next.distance,
+                sw.pos, sw.direction, straight, false);
+        addSegment(map, e, next.pos);
+        addCrossing(map, e, n.pos, n.dir, next.distance);
+        add(n, e);
+        if (alternative >= 0 && alternative != straight) {
+            SearchResult other = map.getNextSensor(sw.pos, alternative);
+            if (other != null) {
+                Edge alt = new Edge(getNode(other.pos, other.direction), sw.distance + other.distance,
+                        sw.pos, sw.direction, alternative, false);
+                addSegment(map, alt, other.pos);
+                addCrossing(map, alt, sw.pos, alternative, other.distance);
+                add(n, alt);
+            }
+        }
+    }
+
+    private void add(Node n, Edge e) {
+        if (e.to != null) {
+            n.edges.add(e);
+        }
+    }
+
+    private void addSegment(RailMap map, Edge e, Point sensor) {
+        Point key = map.getSegmentKey(sensor);
+        if (key != null) {
+            e.segment = GlobalSemaphores.findOrCreate(key);
+        }
+    }
+
+    private void addCrossing(RailMap map, Edge e, Point from, int dir, int within) {
+        SearchResult cross = map.getNextCrossing(from, dir);
+        if (cross != null && cross.distance <= within) {
+            e.crossing = GlobalSemaphores.findOrCreate(cross.pos);
+        }
+    }
+
+    /**
+     * A train hitting a sensor moving in a direction
+     */
+    public static class Node {
+
+        public final Point pos;
+        public final int dir;
+        public final List<Edge> edges = new ArrayList<Edge>();
+        /**
+         * The end of the line ahead if the train turns around here, else null
+         */
+        public Point end;
+
+        Node(Point pos, int dir) {
+            this.pos = pos;
+            this.dir = dir;
+        }
+
+        @Override
+        public String toString() {
+            return pos + " " + DirectionArrays.dirNames[dir];
+        }
+    }
+
+    /**
+     * The way from one sensor to the next
+     */
+    public static class Edge {
+
+        public final Node to;
+        public final int distance;
+        /**
+         * The switch passed, how the train enters it and leaves it, null
+         * and -1 if there is none
+         */
+        public final Point switchPos;
+        public final int switchIn;
+        public final int switchOut;
+        /**
+         * The train turns around and goes back over the same sensor
+         */
+        public final boolean turnAround;
+        /**
+         * The semaphore of the segment entered past a switch and of the
+         * crossing passed, null if none
+         */
+        public TrackLock segment;
+        public TrackLock crossing;
+
+        Edge(Node to, int distance, Point switchPos, int switchIn, int switchOut, boolean turnAround) {
+            this.to = to;
+            this.distance = distance;
+            this.switchPos = switchPos;
+            this.switchIn = switchIn;
+            this.switchOut = switchOut;
+            this.turnAround = turnAround;
+        }
+    }
+}
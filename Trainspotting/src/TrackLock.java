@@ -0,0 +1,41 @@
+
+/**
+ * Exclusive access to a piece of track (a crossing or a segment). This is
+ * what trains see of a semaphore, it is implemented by OccupancyLock and,
+ * when the map is split over several controllers, by RemoteTrackLock.
+ */
+public interface TrackLock {
+
+    /**
+     * Take the lock if it is free, never blocks.
+     *
+     * @return true if the lock was taken
+     */
+    public boolean tryAcquire();
+
+    /**
+     * Take the lock, waiting if needed.
+     *
+     * @param priority higher is served earlier, if the lock cares
+     * @throws TrackBlockedException if the lock is or gets blocked
+     */
+    public void acquire(int priority) throws InterruptedException;
+
+    /**
+     * Release the lock. Like a Semaphore, any thread may release.
+     */
+    public void release();
+
+    /**
+     * Mark the track as blocked by a wreck: it can't be taken any more,
+     * and everyone waiting for it gets a TrackBlockedException.
+     */
+    public void block();
+
+    public boolean isBlocked();
+
+    /**
+     * One line summary of the contention on this lock
+     */
+    public String statistics();
+}
@@ -2,24 +2,67 @@
 import TSim.CommandException;
 import TSim.SensorEvent;
 import TSim.TSimInterface;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * One Train instance for each Train. Call start() to start the train in a
  * seperate thread (as with anything extending Thread)
+ *
+ * If tsim reports that the train has crashed, every semaphore the train
+ * holds is blocked (see TrackLock.block()) and the thread ends. The other
+ * trains then turn around, or take the other way at a switch, instead of
+ * waiting for the wreck forever.
+ *
+ * Trains can be put in priority classes (see setPriorityClass()): with the
+ * PRIORITY lock policy a train of a higher class is handed a contended
+ * semaphore before any train of a lower class that hasn't waited for long
+ * (see OccupancyLock.setAging()).
+ *
+ * Every train learns how fast it really moves from the time between the
+ * sensors it passes (see MotionModel). A train that can't stop in the
+ * tightest braking distance of the map (see setBrakingRoom()) is warned
+ * about, and slowed down if setSpeedClamping() asks for it.
  */
 public final class Train extends Thread implements Runnable {
 
+    /**
+     * Lock priorities of a class are this much above those of the class
+     * below it, within a class faster trains go first
+     */
+    public static final int CLASS_WEIGHT = 100;
+    /**
+     * How long a train waits at the end of a line before going back
+     */
+    public static final long TURN_AROUND_MILLIS = 1000;
+    private static final Map<Integer, Integer> priorityClasses = new ConcurrentHashMap<Integer, Integer>();
+    private static volatile int brakingRoom = Integer.MAX_VALUE;
+    private static volatile boolean clampSpeeds;
+
     private RailMap railMap;
     private Map<Sensor, Runnable> pendingActions;
+    private Map<Sensor, List<TrackLock>> pendingReleases;
+    private Set<TrackLock> held = new LinkedHashSet<TrackLock>();
+    private List<TrackLock> takenHere = new ArrayList<TrackLock>(); // at the current sensor
+    private volatile boolean failed;
     private int currentVelocity;
     private int maxVelocity;
     private int id;
     private boolean goingForwards;
     private Point point0;
     private int prevDir;
+    private ShardContext shard; // null unless the map is split
+    private TimetablePlanner timetable; // null unless driving by timetable
+    private StationRouter router; // null unless routing to the map's stations
+    private Point destination; // the station the router heads for
+    private SensorEvent resumeEvent; // handled first by a handed over train
+    private final MotionModel motion = new MotionModel();
+    private boolean clampReported;
 
     public Train(RailMap railMap, int maxVelocity, int id) {
         this.railMap = railMap;
@@ -28,11 +71,165 @@ public final class Train extends Thread implements Runnable {
         this.point0 = railMap.trainStartPos(id);
 
         this.pendingActions = new HashMap<Sensor, Runnable>();
+        this.pendingReleases = new HashMap<Sensor, List<TrackLock>>();
         goingForwards = true;
         setMaxVelocity();
 
     }
 
+    /**
+     * Continue a train handed over from another controller. It is already
+     * moving and already holds its segment.
+     *
+     * @param state as given by handoverState()
+     * @param event the sensor event the train should start with
+     */
+    Train(RailMap railMap, ShardContext shard, String[] state, SensorEvent event) {
+        this.railMap = railMap;
+        this.shard = shard;
+        this.resumeEvent = event;
+        this.id = Integer.parseInt(state[0]);
+        this.maxVelocity = Integer.parseInt(state[1]);
+        this.currentVelocity = Integer.parseInt(state[2]);
+        this.goingForwards = state[3].equals("1");
+        this.point0 = new Point(Integer.parseInt(state[4]), Integer.parseInt(state[5]));
+        this.prevDir = Integer.parseInt(state[6]);
+
+        this.pendingActions = new HashMap<Sensor, Runnable>();
+        this.pendingReleases = new HashMap<Sensor, List<TrackLock>>();
+        int n = Integer.parseInt(state[7]);
+        for (int i = 0; i < n; i++) {
+            Point sensorPos = new Point(Integer.parseInt(state[8 + i * 4]),
+                    Integer.parseInt(state[9 + i * 4]));
+            Point key = new Point(Integer.parseInt(state[10 + i * 4]),
+                    Integer.parseInt(state[11 + i * 4]));
+            TrackLock lock = GlobalSemaphores.findOrCreate(key);
+            held.add(lock);
+            releaseSemaphorAt(railMap.getSensor(sensorPos), lock);
+        }
+    }
+
+    /**
+     * Drive by the timetable instead of just back and forth
+     */
+    void setTimetable(TimetablePlanner timetable) {
+        this.timetable = timetable;
+    }
+
+    /**
+     * Wait at the sensor until the timetable says to go on
+     */
+    void followTimetable(Point sensor, int dir) {
+        if (timetable == null || currentVelocity == 0) {
+            return;
+        }
+        double depart = timetable.arrive(id, getSafeMaxVelocity(), sensor, dir);
+        if (Double.isNaN(depart) || depart - TrainPhysics.now() < TimetablePlanner.HOLD_SLACK) {
+            return;
+        }
+        Metrics.increment("timetable holds");
+        stopTrain();
+        try {
+            TrainPhysics.sleep(TrainPhysics.millisUntil(depart));
+        } catch (InterruptedException ex) {
+            sayImportant("train got interrupted waiting for the timetable!");
+        }
+        setMaxVelocity();
+    }
+
+    /**
+     * Head for the stations of the map in turn, unless driving by timetable
+     */
+    void setRouter(StationRouter router) {
+        this.router = router;
+        destination = router == null ? null : router.nextStation(point0);
+    }
+
+    /**
+     * The train is going to turn around at the end of a line, head for
+     * the next station if it has got to the one it was going to
+     */
+    void reachedEnd(Point end) {
+        if (router == null || end == null || destination == null
+                || !Timetable.serves(end, destination)) {
+            return;
+        }
+        Metrics.increment("station arrivals");
+        destination = router.nextStation(end);
+        say("Heading for station " + destination);
+    }
+
+    /**
+     * @return the way the timetable, or else the route to the next
+     *         station, takes out of the switch, -1 if they don't say
+     */
+    int adviseSwitch(Point switchPos, int dirIn) {
+        if (timetable != null) {
+            return timetable.advise(id, switchPos, dirIn);
+        }
+        return router == null ? -1 : router.advise(destination, switchPos, dirIn);
+    }
+
+    /**
+     * Let this train be handed over when it enters another region
+     */
+    void setShard(ShardContext shard) {
+        this.shard = shard;
+    }
+
+    /**
+     * Check that the train can leave this controller's region. A local
+     * semaphore the train still holds means the partition missed a piece
+     * of shared track the train is still on, and actions waiting for a
+     * sensor can't be sent to another controller. Either way the train is
+     * stopped and fails here, so that what it holds stays blocked.
+     *
+     * @return false if the train must not be handed over
+     */
+    private boolean leaveRegion() {
+        if (!pendingActions.isEmpty()) {
+            stopTrain();
+            fail("can't hand over a train with " + pendingActions.size() + " pending action(s)");
+            return false;
+        }
+        for (TrackLock lock : held) {
+            if (!(lock instanceof RemoteTrackLock)) {
+                stopTrain();
+                fail("can't hand over a train holding local semaphore " + lock);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Everything another controller needs to continue this train, as space
+     * separated fields. Only remote semaphores can be handed over, see
+     * leaveRegion().
+     */
+    String handoverState() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(id).append(' ').append(maxVelocity).append(' ').append(currentVelocity);
+        sb.append(' ').append(goingForwards ? 1 : 0);
+        sb.append(' ').append(point0.x).append(' ').append(point0.y).append(' ').append(prevDir);
+        StringBuilder releases = new StringBuilder();
+        int n = 0;
+        for (Map.Entry<Sensor, List<TrackLock>> e : pendingReleases.entrySet()) {
+            for (TrackLock lock : e.getValue()) {
+                if (!(lock instanceof RemoteTrackLock)) {
+                    throw new IllegalStateException("local semaphore " + lock + " in a handover");
+                }
+                Point key = ((RemoteTrackLock) lock).getKey();
+                releases.append(' ').append(e.getKey().getPosition().x);
+                releases.append(' ').append(e.getKey().getPosition().y);
+                releases.append(' ').append(key.x).append(' ').append(key.y);
+                n++;
+            }
+        }
+        sb.append(' ').append(n).append(releases);
+        return sb.toString();
+    }
+
     /**
      * Run given action next time hitting given sensor
      */
@@ -46,29 +243,90 @@ public final class Train extends Thread implements Runnable {
         }
     }
 
+    /**
+     * Release given semaphore next time hitting given sensor
+     */
+    void releaseSemaphorAt(Sensor s, TrackLock lock) {
+        List<TrackLock> locks = pendingReleases.get(s);
+        if (locks == null) {
+            locks = new ArrayList<TrackLock>();
+            pendingReleases.put(s, locks);
+        }
+        locks.add(lock);
+    }
+
+    private void runPendingAt(Sensor s) {
+        if (pendingActions.containsKey(s)) {
+            pendingActions.remove(s).run();
+        }
+        if (pendingReleases.containsKey(s)) {
+            for (TrackLock lock : pendingReleases.remove(s)) {
+                releaseSemaphor(lock);
+            }
+        }
+    }
+
     @Override
     public void run() {
-        // initialize so the start-segment is taken
-        trainAcquireSemaphor(railMap.getSegmentSemaphor(point0));
+        DeterministicScheduler.awaitTurn();
+        try {
+            drive();
+        } finally {
+            DeterministicScheduler.yieldTurn();
+        }
+    }
+
+    private void drive() {
+        if (resumeEvent == null) {
+            // initialize so the start-segment is taken
+            trainAcquireSemaphor(railMap.getSegmentSemaphor(point0));
+        }
 
         while (true) {
-            SensorEvent event = getSensorEvent();
+            SensorEvent event;
+            if (resumeEvent != null) {
+                event = resumeEvent;
+                resumeEvent = null;
+            } else {
+                event = getSensorEvent();
+            }
+            if (event == null) {
+                return; // crashed
+            }
 
             final int x = event.getXpos();
             final int y = event.getYpos();
             final Point point = new Point(x, y);
+            RailMap map = railMap.snapshot();
             Sensor sensor =
-                    railMap.getSensorArray()[x][y];
+                    map.getSensorArray()[x][y];
             if (event.getStatus() == SensorEvent.INACTIVE) {
+            } else if (sensor == null) {
+                // removed by a map change, but what waits for it must run
+                sayImportant("sensor at " + point + " has been removed from the map");
+                ArrayList<Sensor> waiting = new ArrayList<Sensor>(pendingActions.keySet());
+                waiting.addAll(pendingReleases.keySet());
+                for (Sensor s : waiting) {
+                    if (s.getPosition().equals(point)) {
+                        runPendingAt(s);
+                    }
+                }
+            } else if (shard != null && !shard.owns(point)) {
+                // entering another region, its controller takes over from here
+                runPendingAt(sensor);
+                if (leaveRegion()) {
+                    shard.handOver(this, event);
+                }
+                return;
             } else {
 
-                if (pendingActions.containsKey(sensor)) {
-                    pendingActions.get(sensor).run();
-                    pendingActions.remove(sensor);
-                }
+                runPendingAt(sensor);
                 int direction =
-                        railMap.getDirectionTrainCameWith(point0, point, prevDir);
+                        map.getDirectionTrainCameWith(point0, point, prevDir);
                 say("Hitted with direction " + direction);
+                motion.sensorHit(map, point, direction, currentVelocity);
+                exportMotion();
+                takenHere.clear();
                 sensor.getAction(direction, this);
                 point0 = Point.createNewAndMove(point, direction);
                 prevDir = direction;
@@ -82,8 +340,9 @@ public final class Train extends Thread implements Runnable {
         try {
             iface.setSpeed(id, velocity);
         } catch (CommandException ex) {
-            sayImportant("error setting velocity!!!!!!!!!");
+            fail("error setting velocity: " + ex.getMessage());
         }
+        motion.speedSet(velocity);
         currentVelocity = velocity;
     }
 
@@ -91,6 +350,81 @@ public final class Train extends Thread implements Runnable {
         return currentVelocity;
     }
 
+    public int getMaxVelocity() {
+        return maxVelocity;
+    }
+
+    /**
+     * @return the max speed, lowered (but not below 1) if the train needs
+     *         more room to stop from it than the map has and speeds are
+     *         clamped
+     */
+    public int getSafeMaxVelocity() {
+        int safe = motion.safeSpeed(brakingRoom, maxVelocity);
+        if (safe >= maxVelocity) {
+            return maxVelocity;
+        }
+        int speed = clampSpeeds ? Math.max(1, safe) : maxVelocity;
+        if (!clampReported) {
+            sayImportant("speed " + maxVelocity + " needs " + motion.stoppingDistance(maxVelocity)
+                    + " cells to stop, the map only has " + brakingRoom + ", driving at " + speed);
+            Metrics.increment(clampSpeeds ? "speeds clamped" : "speeds over braking room");
+            clampReported = true;
+        }
+        return speed;
+    }
+
+    public MotionModel getMotionModel() {
+        return motion;
+    }
+
+    /**
+     * Set the fewest cells any train has to stop in on the map (see
+     * MapValidator.getMinRoom())
+     */
+    public static void setBrakingRoom(int cells) {
+        brakingRoom = cells;
+    }
+
+    /**
+     * Lower the speed of trains that can't stop in the braking room,
+     * otherwise they are only warned about
+     */
+    public static void setSpeedClamping(boolean on) {
+        clampSpeeds = on;
+    }
+
+    /**
+     * Show what the train has learned with --stats
+     */
+    private void exportMotion() {
+        if (!motion.isLearned()) {
+            return;
+        }
+        String prefix = "train " + id + " ";
+        Metrics.set(prefix + "motion samples", motion.getSamples());
+        Metrics.set(prefix + "cells per minute at max speed",
+                Math.round(motion.cellsPerSecond(maxVelocity) * 60));
+        Metrics.set(prefix + "stopping distance at max speed", motion.stoppingDistance(maxVelocity));
+        Metrics.set(prefix + "safe max speed", motion.safeSpeed(brakingRoom, TrainPhysics.MAX_SPEED));
+    }
+
+    public int getTrainId() {
+        return id;
+    }
+
+    /**
+     * Keep going in the same direction at the given speed, at most the max
+     * speed. A train that is standing still stays so.
+     */
+    public void cruiseAt(int speed) {
+        int velocity = (goingForwards ? 1 : -1) * Math.min(speed, getSafeMaxVelocity());
+        if (failed || currentVelocity == 0 || velocity == currentVelocity) {
+            return;
+        }
+        setVelocity(velocity);
+    }
+
     public void stopTrain() {
         say("Stopping train ...");
         setVelocity(0);
@@ -100,13 +434,16 @@ public final class Train extends Thread implements Runnable {
 
         setVelocity(goingForwards ? 1 : -1);
         SensorEvent se = getSensorEvent();
+        if (se == null || failed) {
+            return; // crashed
+        }
         if (se.getStatus() != SensorEvent.INACTIVE) {
             sayImportant("expected INACTIVE on turnaround");
         }
         stopTrain();
         goingForwards ^= true; // turn direction
         try {
-            sleep(1000);
+            TrainPhysics.sleep(TURN_AROUND_MILLIS);
         } catch (InterruptedException ex) {
             sayImportant("train got interrupted during sleep!");
         }
@@ -119,38 +456,164 @@ public final class Train extends Thread implements Runnable {
 
     public void setMaxVelocity() {
         say("Setting max velocity ...");
-        setVelocity((goingForwards ? 1 : -1) * maxVelocity);
+        setVelocity((goingForwards ? 1 : -1) * getSafeMaxVelocity());
     }
 
-    public void trainAcquireSemaphor(Semaphore s) {
+    /**
+     * @return false if the semaphore is blocked, or if the thread got
+     *         interrupted (the interrupt is then kept)
+     */
+    public boolean trainAcquireSemaphor(TrackLock s) {
+        if (failed) {
+            return false;
+        }
         try {
-            s.acquire();
+            long start = TrainPhysics.nanoTime();
+            s.acquire(getLockPriority());
+            recordWait(TrainPhysics.nanoTime() - start);
             say("Aquired semaphore " + s);
+            taken(s);
+            return true;
         } catch (InterruptedException ex) {
-            sayImportant("error when aquire semaphore " + ex.getMessage());
+            sayImportant("train got interrupted waiting for " + s);
+            Thread.currentThread().interrupt();
+        } catch (TrackBlockedException ex) {
+            sayImportant(ex.getMessage());
         }
+        return false;
     }
 
-    public void waitIfTakenThenGo(Semaphore s) {
-        boolean aquired = s.tryAcquire();
-        if (!aquired) {
-            stopTrain();
-            trainAcquireSemaphor(s);
-            setMaxVelocity();
+    /**
+     * Take the semaphore if it is free, never blocks
+     */
+    public boolean tryAcquire(TrackLock s) {
+        if (failed || !s.tryAcquire()) {
+            return false;
         }
+        taken(s);
+        return true;
+    }
+
+    /**
+     * @return false if the semaphore is blocked or the thread got interrupted,
+     *         the train is then stopped
+     */
+    public boolean waitIfTakenThenGo(TrackLock s) {
+        if (tryAcquire(s)) {
+            return true;
+        }
+        ContentionMap.stopped(s);
+        stopTrain();
+        if (!trainAcquireSemaphor(s)) {
+            return false;
+        }
+        setMaxVelocity();
+        return true;
+    }
+
+    private void taken(TrackLock s) {
+        held.add(s);
+        takenHere.add(s);
+    }
+
+    /**
+     * The track ahead is blocked by a wreck: give back what was taken for
+     * it at this sensor and go back the way we came
+     */
+    public void turnAroundBlocked() {
+        if (failed || Thread.currentThread().isInterrupted()) {
+            // an interrupted acquire isn't a wreck, the thread is ending
+            return;
+        }
+        sayImportant("the track ahead is blocked, turning around");
+        Metrics.increment("turned around at blocked track");
+        for (TrackLock s : takenHere) {
+            for (List<TrackLock> locks : pendingReleases.values()) {
+                locks.remove(s);
+            }
+            releaseSemaphor(s);
+        }
+        takenHere.clear();
+        stopTrain();
+        goingForwards ^= true;
+        try {
+            TrainPhysics.sleep(TURN_AROUND_MILLIS);
+        } catch (InterruptedException ex) {
+            sayImportant("train got interrupted during sleep!");
+        }
+        setMaxVelocity();
+    }
+
+    /**
+     * tsim has given up on this train: block the track it holds, it is
+     * somewhere on it
+     */
+    private void fail(String why) {
+        if (failed) {
+            return;
+        }
+        failed = true;
+        sayImportant(why + ", blocking the " + held.size() + " semaphore(s) it holds");
+        Metrics.increment("crashed trains");
+        for (TrackLock s : held) {
+            s.block();
+            Metrics.increment("blocked semaphores");
+        }
+        held.clear();
+        pendingReleases.clear();
+        pendingActions.clear();
+    }
+
+    /**
+     * Priority used when waiting for an occupied semaphore, trains of a
+     * higher class go first, then faster trains (only matters with the
+     * PRIORITY lock policy)
+     */
+    public int getLockPriority() {
+        return getPriorityClass(id) * CLASS_WEIGHT + maxVelocity;
+    }
+
+    /**
+     * Put a train in a priority class, higher classes go first. Trains
+     * are in class 0 unless set otherwise.
+     */
+    public static void setPriorityClass(int trainId, int priorityClass) {
+        priorityClasses.put(trainId, priorityClass);
+    }
+
+    public static int getPriorityClass(int trainId) {
+        Integer c = priorityClasses.get(trainId);
+        return c == null ? 0 : c;
+    }
+
+    /**
+     * Count the time spent in acquire() per priority class, to compare the
+     * classes with --stats
+     */
+    private void recordWait(long nanos) {
+        String prefix = "class " + getPriorityClass(id) + " ";
+        long millis = nanos / 1000000;
+        Metrics.increment(prefix + "semaphore acquires");
+        Metrics.add(prefix + "semaphore wait ms", millis);
+        Metrics.max(prefix + "semaphore max wait ms", millis);
     }
 
-    void releaseSemaphor(Semaphore s) {
+    void releaseSemaphor(TrackLock s) {
+        held.remove(s);
         s.release();
     }
 
     private SensorEvent getSensorEvent() {
         SensorEvent event = null;
+        DeterministicScheduler.yieldTurn();
         try {
             event = TSimInterface.getInstance().getSensor(id);
+            DeterministicScheduler.awaitTurn();
         } catch (CommandException ex) {
-            sayImportant("interface didn't allow getting sensor!!!");
+            DeterministicScheduler.awaitTurn();
+            fail(ex.getMessage());
         } catch (InterruptedException ex) {
+            DeterministicScheduler.awaitTurn();
             sayImportant("train got interrupted waiting for sensor!");
         }
 
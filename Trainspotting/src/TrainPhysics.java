@@ -0,0 +1,107 @@
+
+/**
+ * Rough model of how the simulated trains move, used when reasoning about
+ * sensor placement. Distances are in map cells, speeds in TSim units.
+ *
+ * Braking is modelled as constant deceleration, so the stopping distance
+ * grows with the square of the speed. DECELERATION is not measured: it is
+ * calibrated so that the bundled map (bana), whose tightest sensor leaves
+ * one cell to brake in, comes out at the max speed 14 found by testing in
+ * tsim. Any other safe speed derived from it (MapValidator, SensorPlacer)
+ * is only as good as that one data point. HeadlessTSim brakes by the same
+ * constant, so it can't be used to check it.
+ */
+public class TrainPhysics {
+
+    /**
+     * How long a train is, in cells
+     */
+    public static final int TRAIN_LENGTH = 2;
+    /**
+     * Highest speed TSim accepts
+     */
+    public static final int MAX_SPEED = 40;
+    /**
+     * speed^2 per cell, a train at 14 stops within one cell
+     */
+    public static final double DECELERATION = 100;
+    /**
+     * Cells per second a train moves at speed 1, an estimate of tsim at
+     * its default simulation speed
+     */
+    public static final double CELLS_PER_SECOND = 0.1;
+    private static volatile Clock clock = new ScaledClock(1);
+
+    /**
+     * @return cells a train at given speed needs to come to a stop
+     */
+    public static int stoppingDistance(int speed) {
+        speed = Math.abs(speed);
+        return (int) Math.ceil(speed * speed / (2 * DECELERATION));
+    }
+
+    /**
+     * @return how many cells per second a train moves at given speed
+     */
+    public static double cellsPerSecond(double speed) {
+        return Math.abs(speed) * CELLS_PER_SECOND;
+    }
+
+    /**
+     * Use the given clock for the time and the pauses of the controller
+     */
+    public static void setClock(Clock c) {
+        clock = c;
+    }
+
+    public static Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return the time of the simulation in seconds, from some fixed point
+     */
+    public static double now() {
+        return clock.nanoTime() / 1e9;
+    }
+
+    /**
+     * @return the time of the simulation in nanoseconds, from some fixed
+     *         point
+     */
+    public static long nanoTime() {
+        return clock.nanoTime();
+    }
+
+    /**
+     * Wait for the given milliseconds of simulated time, giving up the
+     * turn meanwhile (see DeterministicScheduler)
+     */
+    public static void sleep(long millis) throws InterruptedException {
+        DeterministicScheduler.yieldTurn();
+        try {
+            clock.sleep(millis);
+        } finally {
+            DeterministicScheduler.awaitTurn();
+        }
+    }
+
+    /**
+     * @return milliseconds until the given time of the simulation, 0 if it
+     *         has passed
+     */
+    public static long millisUntil(double time) {
+        return Math.max(0, (long) ((time - now()) * 1000));
+    }
+
+    /**
+     * @return highest speed that can stop within the given number of cells
+     */
+    public static int maxSpeedFor(int cells) {
+        int speed = 0;
+        while (speed < MAX_SPEED && stoppingDistance(speed + 1) <= cells) {
+            speed++;
+        }
+        return speed;
+    }
+}
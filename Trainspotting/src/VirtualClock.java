@@ -0,0 +1,47 @@
+
+import java.util.PriorityQueue;
+
+/**
+ * A clock that only moves when it is told to, by the simulator driving it
+ * (see HeadlessTSim). A thread sleeping on it wakes when the clock has been
+ * moved past its time, however long that takes on the wall clock.
+ */
+public class VirtualClock implements Clock {
+
+    private volatile long nanos;
+    // guarded by this, when the sleepers want to wake up
+    private final PriorityQueue<Long> wakeups = new PriorityQueue<Long>();
+
+    public long nanoTime() {
+        return nanos;
+    }
+
+    public void sleep(long millis) throws InterruptedException {
+        synchronized (this) {
+            Long wake = nanos + millis * 1000000L;
+            wakeups.add(wake);
+            try {
+                while (nanos < wake) {
+                    wait();
+                }
+            } finally {
+                wakeups.remove(wake);
+            }
+        }
+    }
+
+    /**
+     * Move the clock on to the given time, waking the sleepers whose time
+     * has come
+     *
+     * @return true if any sleeper was woken
+     */
+    public synchronized boolean advanceTo(double seconds) {
+        nanos = Math.max(nanos, (long) (seconds * 1e9));
+        if (wakeups.isEmpty() || wakeups.peek() > nanos) {
+            return false;
+        }
+        notifyAll();
+        return true;
+    }
+}
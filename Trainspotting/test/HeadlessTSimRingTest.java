@@ -0,0 +1,51 @@
+
+import TSim.CommandException;
+import TSim.MappedRingTransport;
+import TSim.SensorEvent;
+import TSim.TSimInterface;
+import java.io.File;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs HeadlessTSim over a MappedRingTransport, the way a controller in
+ * another process talks to it, but with both ends in this JVM.
+ */
+public class HeadlessTSimRingTest {
+
+    @Test(timeout = 20000)
+    public void commandsAndSensorsGoThroughTheRing() throws Exception {
+        File ring = File.createTempFile("ring", null);
+        ring.deleteOnExit();
+        final HeadlessTSim sim = new HeadlessTSim(new File("build/classes/bana"), 20);
+        sim.serveRing(ring);
+        sim.start();
+        TSimInterface tsim = new TSimInterface(MappedRingTransport.open(ring));
+        try {
+            tsim.setSpeed(sim.getNumTrains() + 1, 10);
+            fail("a train that isn't there took a speed");
+        } catch (CommandException ex) {
+        }
+        tsim.setSpeed(1, 14);
+        tsim.setSpeed(2, 14);
+        Thread runner = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    sim.run(60);
+                } catch (InterruptedException ex) {
+                }
+            }
+        };
+        runner.setDaemon(true);
+        runner.start();
+        for (int id = 1; id <= 2; id++) {
+            SensorEvent e = tsim.getSensor(id);
+            assertEquals(id, e.getTrainId());
+            assertEquals(SensorEvent.ACTIVE, e.getStatus());
+            assertEquals(SensorEvent.INACTIVE, tsim.getSensor(id).getStatus());
+        }
+        assertTrue(sim.getCommands() >= 3);
+    }
+}
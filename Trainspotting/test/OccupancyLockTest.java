@@ -0,0 +1,149 @@
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Stress tests for OccupancyLock under each of its policies: the lock must
+ * keep out a second holder, lose no waiter, and survive waiters that give
+ * up on an interrupt.
+ */
+public class OccupancyLockTest {
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 20000;
+    private static final int CANCEL_ROUNDS = 2000;
+
+    @Test
+    public void bargingExcludes() throws Exception {
+        hammer(OccupancyLock.Policy.BARGING);
+    }
+
+    @Test
+    public void fifoExcludes() throws Exception {
+        hammer(OccupancyLock.Policy.FIFO);
+    }
+
+    @Test
+    public void priorityExcludes() throws Exception {
+        hammer(OccupancyLock.Policy.PRIORITY);
+    }
+
+    @Test
+    public void bargingSurvivesCancel() throws Exception {
+        cancelWhileReleasing(OccupancyLock.Policy.BARGING);
+    }
+
+    @Test
+    public void fifoSurvivesCancel() throws Exception {
+        cancelWhileReleasing(OccupancyLock.Policy.FIFO);
+    }
+
+    @Test
+    public void prioritySurvivesCancel() throws Exception {
+        cancelWhileReleasing(OccupancyLock.Policy.PRIORITY);
+    }
+
+    /**
+     * Many threads take the lock in turn, only one may be inside at a time
+     * and every one of them must get through
+     */
+    private void hammer(OccupancyLock.Policy policy) throws Exception {
+        final OccupancyLock lock = newLock(policy);
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final int[] count = new int[1];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < threads.length; i++) {
+            final int priority = i;
+            threads[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int r = 0; r < ROUNDS / THREADS; r++) {
+                            lock.acquire(priority);
+                            if (inside.incrementAndGet() != 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            count[0]++;
+                            inside.decrementAndGet();
+                            lock.release();
+                        }
+                    } catch (InterruptedException ex) {
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join(30000);
+            assertFalse(policy + ": a thread never got through", t.isAlive());
+        }
+        assertEquals(policy + ": two holders at once", 0, overlaps.get());
+        assertEquals(policy + ": lost updates", ROUNDS / THREADS * THREADS, count[0]);
+        assertFalse(lock.isTaken());
+        assertEquals(0, lock.getQueueLength());
+    }
+
+    /**
+     * Two threads wait for a taken lock, the first one is interrupted just
+     * as the lock is released: the second one must still get it
+     */
+    private void cancelWhileReleasing(OccupancyLock.Policy policy) throws Exception {
+        for (int r = 0; r < CANCEL_ROUNDS; r++) {
+            final OccupancyLock lock = newLock(policy);
+            assertTrue(lock.tryAcquire());
+            final CountDownLatch got = new CountDownLatch(1);
+            Thread first = waiter(lock, null);
+            awaitQueue(lock, 1);
+            Thread second = waiter(lock, got);
+            awaitQueue(lock, 2);
+            first.interrupt();
+            lock.release();
+            assertTrue(policy + ": waiter left behind in round " + r,
+                    got.await(5, TimeUnit.SECONDS));
+            first.join(5000);
+            second.join(5000);
+            assertFalse(lock.isTaken());
+            assertEquals(0, lock.getQueueLength());
+        }
+    }
+
+    /**
+     * Start a thread that takes the lock and releases it again, counting
+     * down got if it was taken
+     */
+    private static Thread waiter(final OccupancyLock lock, final CountDownLatch got) {
+        Thread t = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    lock.acquire(0);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                if (got != null) {
+                    got.countDown();
+                }
+                lock.release();
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    private static void awaitQueue(OccupancyLock lock, int length) throws InterruptedException {
+        while (lock.getQueueLength() < length) {
+            Thread.sleep(0, 100000);
+        }
+    }
+
+    private static OccupancyLock newLock(OccupancyLock.Policy policy) {
+        return new OccupancyLock(new AtomicIntegerArray(1), 0, policy, "test");
+    }
+}